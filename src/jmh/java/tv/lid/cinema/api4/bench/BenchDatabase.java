@@ -0,0 +1,109 @@
+package tv.lid.cinema.api4.bench;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import tv.lid.cinema.api4.config.Config;
+import tv.lid.cinema.api4.models.CommonModel;
+import tv.lid.cinema.api4.models.CountStrategy;
+import tv.lid.cinema.api4.models.EntityCache;
+import tv.lid.cinema.api4.models.MovieModel;
+import tv.lid.cinema.api4.models.ScheduleModel;
+import tv.lid.cinema.api4.storages.DatabaseStorage;
+
+// тестовая база данных H2 для бенчмарков, заполняемая при открытии
+final class BenchDatabase {
+    // каталог файлов тестовой базы данных
+    private static final String HOME = new File("build", "jmh-data").getAbsolutePath();
+
+    // количество фильмов и сеансов на каждый фильм
+    static final int MOVIES             = 1000,
+                     SCHEDULES_PER_FILM = 20;
+
+    // количество залов, трехчасовых интервалов в сутках и первый день сеансов
+    private static final int       HALLS         = 5,
+                                   SLOTS_PER_DAY = 8;
+    private static final LocalDate FIRST_DAY     = LocalDate.of(2020, 1, 1);
+
+    // хранилище базы данных
+    private final DatabaseStorage dbs;
+
+    // конструктор
+    private BenchDatabase(final DatabaseStorage dbs) {
+        this.dbs = dbs;
+    }
+
+    // открытие базы данных в заданном режиме H2 (embedded или tcp) и заполнение её данными
+    static BenchDatabase open(final String mode, final String countStrategy) throws SQLException {
+        final DatabaseStorage dbs = DatabaseStorage.initialize(
+            new Config.Database(
+                DatabaseStorage.DB_TYPE_H2,
+                "",
+                BenchDatabase.HOME,
+                "bench-" + mode,
+                mode,
+                16384,
+                false,
+                "localhost",
+                9123,
+                "sa",
+                "",
+                countStrategy,
+                new Config.Pool(),
+                null,
+                null,
+                null,
+                null
+            )
+        );
+        dbs.connect();
+
+        CommonModel.initialize(dbs.dslContext(), CountStrategy.of(countStrategy));
+        EntityCache.configure(10000, 300);
+
+        // пересоздаём таблицы и заполняем их (при первом запуске таблиц ещё нет)
+        try {
+            ScheduleModel.dropTable();
+            MovieModel.dropTable();
+        } catch (Exception exc) {}
+
+        MovieModel.createTable();
+        ScheduleModel.createTable();
+        MovieModel.createIndexes();
+        ScheduleModel.createIndexes();
+
+        final List<MovieModel> movies = new ArrayList<>(BenchDatabase.MOVIES);
+        for (int i = 0; i < BenchDatabase.MOVIES; i++) {
+            movies.add(new MovieModel("Movie #" + i, (short) (90 + i % 60), (short) (1950 + i % 70)));
+        }
+
+        // сеансы раскладываются по залам и трехчасовым интервалам суток подряд, поэтому не пересекаются
+        // (фильмы короче трех часов) и все сохраняются
+        final List<ScheduleModel> schedules = new ArrayList<>(BenchDatabase.MOVIES * BenchDatabase.SCHEDULES_PER_FILM);
+        int                       slot      = 0;
+        for (final MovieModel movie : MovieModel.saveAll(movies)) {
+            for (int j = 0; j < BenchDatabase.SCHEDULES_PER_FILM; j++, slot++) {
+                schedules.add(new ScheduleModel(
+                    movie.id,
+                    String.format(
+                        "%s %02d:00",
+                        BenchDatabase.FIRST_DAY.plusDays(slot / (BenchDatabase.HALLS * BenchDatabase.SLOTS_PER_DAY)),
+                        3 * (slot / BenchDatabase.HALLS % BenchDatabase.SLOTS_PER_DAY)
+                    ),
+                    (byte) (1 + slot % BenchDatabase.HALLS)
+                ));
+            }
+        }
+        ScheduleModel.saveAll(schedules);
+
+        return new BenchDatabase(dbs);
+    }
+
+    // закрытие базы данных
+    void close() throws SQLException {
+        this.dbs.disconnect();
+    }
+}
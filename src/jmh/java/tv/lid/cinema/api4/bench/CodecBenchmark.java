@@ -0,0 +1,80 @@
+package tv.lid.cinema.api4.bench;
+
+import io.jooby.MockContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import tv.lid.cinema.api4.App;
+import tv.lid.cinema.api4.codecs.JsonCodec;
+import tv.lid.cinema.api4.controllers.CommonController;
+import tv.lid.cinema.api4.controllers.MovieController;
+import tv.lid.cinema.api4.models.MovieModel;
+import tv.lid.cinema.api4.models.ScheduleModel;
+
+// бенчмарк JSON-кодека приложения
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CodecBenchmark {
+    // кодек приложения
+    private JsonCodec codec;
+
+    // контекст запроса для кодирования ответа
+    private MockContext ctx;
+
+    // исходные данные
+    private CommonController.Result movieResult, listResult;
+
+    // тела запросов
+    private byte[] movieBody, scheduleBody;
+
+    @Setup
+    public void setup() throws IOException {
+        this.codec = App.codec();
+        this.ctx   = new MockContext();
+
+        final List<MovieModel> movies = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            movies.add(new MovieModel(i, "Movie #" + i, (short) 120, (short) 2020));
+        }
+
+        final MovieController controller = new MovieController();
+
+        this.movieResult = controller.ok(movies.get(0));
+        this.listResult  = controller.ok(controller.new ListWrapper(movies, 1000, 100));
+
+        this.movieBody    = this.codec.mapper().writeValueAsBytes(movies.get(0));
+        this.scheduleBody = this.codec.mapper().writeValueAsBytes(new ScheduleModel(1, 1, "2020-09-10 21:00", (byte) 2));
+    }
+
+    @Benchmark
+    public byte[] encodeMovie() {
+        return this.codec.encode(this.ctx, this.movieResult);
+    }
+
+    @Benchmark
+    public byte[] encodeMovieList() {
+        return this.codec.encode(this.ctx, this.listResult);
+    }
+
+    @Benchmark
+    public Object decodeMovie() {
+        return this.codec.decode(this.ctx.setBody(this.movieBody), MovieModel.class);
+    }
+
+    @Benchmark
+    public Object decodeSchedule() {
+        return this.codec.decode(this.ctx.setBody(this.scheduleBody), ScheduleModel.class);
+    }
+}
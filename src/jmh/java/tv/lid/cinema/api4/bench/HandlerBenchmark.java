@@ -0,0 +1,81 @@
+package tv.lid.cinema.api4.bench;
+
+import io.jooby.MockContext;
+import io.jooby.Route;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import tv.lid.cinema.api4.App;
+import tv.lid.cinema.api4.controllers.MovieController;
+import tv.lid.cinema.api4.controllers.ScheduleController;
+import tv.lid.cinema.api4.storages.H2Storage;
+
+// бенчмарк обработчиков контроллеров, вызываемых с подставным контекстом запроса, включая кодирование ответа
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HandlerBenchmark {
+    // тестовая база данных
+    private BenchDatabase db;
+
+    // контроллеры
+    private MovieController    movies;
+    private ScheduleController schedules;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException {
+        this.db = BenchDatabase.open(H2Storage.MODE_EMBEDDED, "window");
+
+        this.movies    = new MovieController();
+        this.schedules = new ScheduleController();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        this.db.close();
+    }
+
+    // обработка запроса и кодирование ответа (результат асинхронного обработчика дожидается)
+    private static byte[] handle(final Route.Handler handler, final MockContext ctx) throws Exception {
+        Object result = handler.apply(ctx);
+        if (result instanceof CompletableFuture) {
+            result = ((CompletableFuture<?>) result).join();
+        }
+        return App.codec().encode(ctx, result);
+    }
+
+    @Benchmark
+    public byte[] listMovies() throws Exception {
+        final MockContext ctx = new MockContext()
+            .setPathMap(Collections.singletonMap("page", "1"));
+        return HandlerBenchmark.handle(this.movies.list, ctx);
+    }
+
+    @Benchmark
+    public byte[] findMovie() throws Exception {
+        final MockContext ctx = new MockContext()
+            .setPathMap(Collections.singletonMap("id", String.valueOf(1 + ThreadLocalRandom.current().nextInt(BenchDatabase.MOVIES))));
+        return HandlerBenchmark.handle(this.movies.find, ctx);
+    }
+
+    @Benchmark
+    public byte[] listSchedules() throws Exception {
+        final MockContext ctx = new MockContext()
+            .setPathMap(Collections.singletonMap("movieId", String.valueOf(1 + ThreadLocalRandom.current().nextInt(BenchDatabase.MOVIES))));
+        return HandlerBenchmark.handle(this.schedules.list, ctx);
+    }
+}
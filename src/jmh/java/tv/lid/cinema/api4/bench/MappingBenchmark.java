@@ -0,0 +1,87 @@
+package tv.lid.cinema.api4.bench;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.jooq.impl.DSL.*;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.SQLDialect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import tv.lid.cinema.api4.models.MovieModel;
+import tv.lid.cinema.api4.models.ScheduleModel;
+
+// бенчмарк преобразования записей выборки в модели: рефлексивный DefaultRecordMapper против позиционного
+// (результат делится на rows, чтобы получить стоимость одной записи)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MappingBenchmark {
+    // количество записей в выборке: страница списка и порция выгрузки
+    @Param({"10", "1000"})
+    public int rows;
+
+    // выборки фильмов и сеансов
+    private Result<Record> movies, schedules;
+
+    @Setup
+    public void setup() {
+        final DSLContext dsl = using(SQLDialect.H2);
+
+        final Field<Integer>       id         = field(name("id"),         int.class);
+        final Field<String>        title      = field(name("title"),      String.class);
+        final Field<Short>         duration   = field(name("duration"),   short.class);
+        final Field<Short>         year       = field(name("year"),       short.class);
+        final Field<Integer>       movieId    = field(name("movie_id"),   int.class);
+        final Field<LocalDateTime> dateTime   = field(name("date_time"),  LocalDateTime.class);
+        final Field<Byte>          auditorium = field(name("auditorium"), byte.class);
+
+        this.movies    = dsl.newResult(new Field<?>[] {id, title, duration, year});
+        this.schedules = dsl.newResult(new Field<?>[] {id, movieId, dateTime, auditorium});
+
+        final LocalDateTime start = LocalDateTime.of(2020, 9, 10, 10, 0);
+        for (int i = 1; i <= this.rows; i++) {
+            final Record movie = dsl.newRecord(id, title, duration, year);
+            movie.set(id,       i);
+            movie.set(title,    "Movie #" + i);
+            movie.set(duration, (short) 120);
+            movie.set(year,     (short) (1950 + i % 70));
+            this.movies.add(movie);
+
+            final Record schedule = dsl.newRecord(id, movieId, dateTime, auditorium);
+            schedule.set(id,         i);
+            schedule.set(movieId,    1 + i % 100);
+            schedule.set(dateTime,   start.plusMinutes(15L * i));
+            schedule.set(auditorium, (byte) (1 + i % 8));
+            this.schedules.add(schedule);
+        }
+    }
+
+    @Benchmark
+    public List<MovieModel> moviesReflective() {
+        return this.movies.into(MovieModel.class);
+    }
+
+    @Benchmark
+    public List<MovieModel> moviesPositional() {
+        return this.movies.map(MovieModel::from);
+    }
+
+    // для сеансов рефлексивного варианта нет: date_time хранится как TIMESTAMP, а в модели -- строкой
+    @Benchmark
+    public List<ScheduleModel> schedulesPositional() {
+        return this.schedules.map(ScheduleModel::from);
+    }
+}
@@ -0,0 +1,87 @@
+package tv.lid.cinema.api4.bench;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import tv.lid.cinema.api4.models.Cursor;
+import tv.lid.cinema.api4.models.MovieModel;
+import tv.lid.cinema.api4.models.Page;
+import tv.lid.cinema.api4.models.ScheduleModel;
+
+// бенчмарк запросов моделей к H2 во встроенном и сетевом режимах
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ModelBenchmark {
+    // количество записей на страницу
+    private static final int PER_PAGE = 10;
+
+    // режим работы H2
+    @Param({"embedded", "tcp"})
+    public String mode;
+
+    // стратегия подсчета количества записей
+    @Param({"exact", "window"})
+    public String countStrategy;
+
+    // тестовая база данных
+    private BenchDatabase db;
+
+    // курсор на середину списка фильмов
+    private Cursor middle;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException {
+        this.db = BenchDatabase.open(this.mode, this.countStrategy);
+
+        final MovieModel movie = MovieModel.list(BenchDatabase.MOVIES / ModelBenchmark.PER_PAGE / 2, ModelBenchmark.PER_PAGE, false).list.get(0);
+        this.middle = movie.cursor(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        this.db.close();
+    }
+
+    // случайный идентификатор фильма
+    private static int randomMovieId() {
+        return 1 + ThreadLocalRandom.current().nextInt(BenchDatabase.MOVIES);
+    }
+
+    @Benchmark
+    public MovieModel findMovie() throws SQLException {
+        return MovieModel.find(ModelBenchmark.randomMovieId());
+    }
+
+    @Benchmark
+    public Page<MovieModel> listMoviesFirstPage() throws SQLException {
+        return MovieModel.list(1, ModelBenchmark.PER_PAGE, true);
+    }
+
+    @Benchmark
+    public Page<MovieModel> listMoviesMiddlePageByOffset() throws SQLException {
+        return MovieModel.list(BenchDatabase.MOVIES / ModelBenchmark.PER_PAGE / 2, ModelBenchmark.PER_PAGE, true);
+    }
+
+    @Benchmark
+    public Page<MovieModel> listMoviesMiddlePageByCursor() throws SQLException {
+        return MovieModel.list(this.middle, ModelBenchmark.PER_PAGE, false);
+    }
+
+    @Benchmark
+    public Page<ScheduleModel> listSchedules() throws SQLException {
+        return ScheduleModel.list(ModelBenchmark.randomMovieId(), 1, ModelBenchmark.PER_PAGE, true);
+    }
+}
@@ -0,0 +1,443 @@
+package tv.lid.cinema.api4.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import tv.lid.cinema.api4.App;
+
+// нагрузочный тест: открытая модель нагрузки с постоянной интенсивностью запросов,
+// задержка отсчитывается от запланированного момента отправки (поправка на coordinated omission)
+public final class LoadTest {
+    // тип содержимого запросов
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    // префикс адресов API
+    private static final String API_URL_PREFIX = "http://localhost:8080/api4";
+
+    // размер пакета при заполнении базы данных
+    private static final int SEED_CHUNK = 1000;
+
+    // количество залов, трехчасовых интервалов в сутках и первый день сеансов
+    private static final int       HALLS         = 5,
+                                   SLOTS_PER_DAY = 8;
+    private static final LocalDate FIRST_DAY     = LocalDate.of(2020, 1, 1);
+
+    // маршрут нагрузочного профиля
+    private static final class Route {
+        final String     name;                                                      // имя маршрута
+        final int        weight;                                                    // доля в профиле нагрузки
+        final Recorder   recorder = new Recorder(TimeUnit.MINUTES.toMicros(1), 3); // задержки, мкс
+        final AtomicLong errors   = new AtomicLong();                               // количество ошибок
+
+        Route(final String name, final int weight) {
+            this.name   = name;
+            this.weight = weight;
+        }
+    }
+
+    // параметры запуска
+    private final int  rate;      // интенсивность, запросов в секунду
+    private final int  duration;  // длительность измерения, секунды
+    private final int  warmup;    // длительность прогрева, секунды
+    private final int  movies;    // количество фильмов в базе данных
+    private final int  schedules; // количество сеансов на фильм
+    private final File report;    // файл отчёта
+
+    // HTTP-клиент
+    private final OkHttpClient client;
+
+    // маршруты профиля нагрузки
+    private final Route listMovies     = new Route("GET /movies/{page}",        25),
+                        listSchedules  = new Route("GET /schedules/{movieId}",  20),
+                        findMovie      = new Route("GET /movie/{id}",           25),
+                        createSchedule = new Route("POST /schedule",            10),
+                        modifySchedule = new Route("PUT /schedule",             10),
+                        killSchedule   = new Route("DELETE /schedule/{id}",     10);
+
+    private final Route[] routes = {
+        this.listMovies, this.listSchedules, this.findMovie, this.createSchedule, this.modifySchedule, this.killSchedule
+    };
+
+    // сеансы, созданные во время теста и доступные для изменения и удаления
+    private final ConcurrentLinkedQueue<Integer> created = new ConcurrentLinkedQueue<>();
+
+    // номер следующего свободного слота (зал и время начала): каждый сеанс занимает свой слот,
+    // поэтому созданные и измененные сеансы не пересекаются с другими сеансами в том же зале
+    private final AtomicInteger slots = new AtomicInteger();
+
+    // количество незавершённых запросов
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // конструктор
+    private LoadTest(
+        final int  rate,
+        final int  duration,
+        final int  warmup,
+        final int  movies,
+        final int  schedules,
+        final File report
+    ) {
+        this.rate      = rate;
+        this.duration  = duration;
+        this.warmup    = warmup;
+        this.movies    = movies;
+        this.schedules = schedules;
+        this.report    = report;
+
+        final Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(4096);
+        dispatcher.setMaxRequestsPerHost(4096);
+
+        this.client = new OkHttpClient.Builder()
+            .dispatcher(dispatcher)
+            .readTimeout(60, TimeUnit.SECONDS)
+            .build();
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final LoadTest test = new LoadTest(
+            Integer.getInteger("load.rate",      500),
+            Integer.getInteger("load.duration",  60),
+            Integer.getInteger("load.warmup",    10),
+            Integer.getInteger("load.movies",    1000),
+            Integer.getInteger("load.schedules", 10),
+            new File(System.getProperty("load.report", "build/reports/load/report.json"))
+        );
+
+        int status = 0;
+        try {
+            test.start();
+            test.seed();
+            test.run();
+        } catch (Exception exc) {
+            exc.printStackTrace();
+            status = 1;
+        } finally {
+            App.halt();
+        }
+
+        // потоки сервера и клиента не являются демонами
+        System.exit(status);
+    }
+
+    // запуск приложения на чистой базе данных
+    private void start() throws IOException, InterruptedException {
+        final File home = new File("build", "load-data");
+        if (home.isDirectory()) {
+            for (final File file : home.listFiles()) {
+                file.delete();
+            }
+        }
+        home.mkdirs();
+
+        final ObjectMapper mapper = new ObjectMapper();
+        final ObjectNode   cfg    = mapper.createObjectNode();
+        cfg.putObject("database")
+            .put("type",          "h2")
+            .put("home",          home.getAbsolutePath())
+            .put("file",          "cinema")
+            .put("mode",          "embedded")
+            .put("cacheSize",     65536)
+            .put("host",          "localhost")
+            .put("port",          9092)
+            .put("user",          "sa")
+            .put("pass",          "")
+            .put("countStrategy", "window");
+        cfg.putObject("server")
+            .put("mode",    System.getProperty("load.serverMode", "default"))
+            .put("workers", Integer.getInteger("load.workers", 64));
+
+        final File cfgFile = new File(home, "config.json");
+        mapper.writeValue(cfgFile, cfg);
+
+        App.main(new String[] { "install", cfgFile.getAbsolutePath() });
+        App.halt();
+        App.main(new String[] { "operate", cfgFile.getAbsolutePath() });
+
+        // ждём готовности сервера
+        for (int i = 0; i < 60; i++) {
+            try (Response response = this.client.newCall(this.get("/movies")).execute()) {
+                if (response.isSuccessful()) {
+                    return;
+                }
+            } catch (IOException exc) {}
+            Thread.sleep(500);
+        }
+        throw new IOException("Server did not start");
+    }
+
+    // заполнение базы данных через пакетные запросы
+    private void seed() throws IOException {
+        final ObjectMapper mapper = new ObjectMapper();
+
+        for (int from = 0; from < this.movies; from += LoadTest.SEED_CHUNK) {
+            final StringBuilder body = new StringBuilder();
+            for (int i = from; i < Math.min(from + LoadTest.SEED_CHUNK, this.movies); i++) {
+                body.append("{\"title\":\"Movie #").append(i)
+                    .append("\",\"duration\":").append(90 + i % 60)
+                    .append(",\"year\":").append(1950 + i % 70).append("}\n");
+            }
+            this.post("/movies/batch", body.toString(), mapper);
+        }
+
+        final StringBuilder body = new StringBuilder();
+        int count = 0;
+        for (int movieId = 1; movieId <= this.movies; movieId++) {
+            for (int j = 0; j < this.schedules; j++) {
+                body.append(LoadTest.schedule(0, movieId, this.slots.getAndIncrement())).append('\n');
+
+                if (++count == LoadTest.SEED_CHUNK) {
+                    this.post("/schedules/batch", body.toString(), mapper);
+                    body.setLength(0);
+                    count = 0;
+                }
+            }
+        }
+        if (count > 0) {
+            this.post("/schedules/batch", body.toString(), mapper);
+        }
+    }
+
+    // прогрев и измерение
+    private void run() throws IOException, InterruptedException {
+        System.out.printf("Warming up for %d s at %d req/s...%n", this.warmup, this.rate);
+        this.drive(this.warmup);
+
+        // результаты прогрева отбрасываются; запросы прогрева дожидаются завершения,
+        // иначе их задержки попадут в измерение
+        this.drain();
+        for (final Route route : this.routes) {
+            route.recorder.getIntervalHistogram();
+            route.errors.set(0);
+        }
+
+        System.out.printf("Measuring for %d s at %d req/s...%n", this.duration, this.rate);
+        final long started = System.nanoTime();
+        this.drive(this.duration);
+
+        // ждём завершения запросов, отправленных в ходе измерения
+        this.drain();
+        final double elapsed = (System.nanoTime() - started) / 1e9;
+
+        this.write(elapsed);
+    }
+
+    // ожидание завершения отправленных запросов (не дольше 30 секунд)
+    private void drain() throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (this.inFlight.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    // отправка запросов по расписанию с постоянным интервалом в течение заданного времени
+    private void drive(final int seconds) {
+        final long interval = TimeUnit.SECONDS.toNanos(1) / this.rate;
+        final long start    = System.nanoTime();
+        final long total    = (long) this.rate * seconds;
+
+        for (long i = 0; i < total; i++) {
+            final long intended = start + i * interval;
+
+            // ожидание запланированного момента; опоздание отправителя входит в задержку
+            long delay;
+            while ((delay = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(delay);
+            }
+
+            this.fire(this.pick(), intended);
+        }
+    }
+
+    // выбор маршрута в соответствии с весами профиля
+    private Route pick() {
+        int roll = ThreadLocalRandom.current().nextInt(100);
+        for (final Route route : this.routes) {
+            if ((roll -= route.weight) < 0) {
+                return route;
+            }
+        }
+        return this.routes[0];
+    }
+
+    // асинхронная отправка запроса по маршруту
+    private void fire(final Route route, final long intended) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final Request request;
+
+        if (route == this.listMovies) {
+            request = this.get("/movies/" + (1 + random.nextInt(Math.max(this.movies / 10, 1))));
+        } else if (route == this.listSchedules) {
+            request = this.get("/schedules/" + (1 + random.nextInt(this.movies)));
+        } else if (route == this.findMovie) {
+            request = this.get("/movie/" + (1 + random.nextInt(this.movies)));
+        } else if (route == this.createSchedule) {
+            request = this.body("/schedule", "POST", LoadTest.schedule(0, 1 + random.nextInt(this.movies), this.slots.getAndIncrement()));
+        } else {
+            final Integer id = this.created.poll();
+            if (id == null) { // ещё нечего изменять или удалять
+                this.fire(this.createSchedule, intended);
+                return;
+            }
+            request = route == this.modifySchedule
+                ? this.body("/schedule", "PUT", LoadTest.schedule(id, 1 + random.nextInt(this.movies), this.slots.getAndIncrement()))
+                : new Request.Builder().url(LoadTest.API_URL_PREFIX + "/schedule/" + id).delete().build();
+        }
+
+        this.inFlight.incrementAndGet();
+        this.client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(final Call call, final IOException exc) {
+                LoadTest.this.done(route, intended, false, null);
+            }
+
+            @Override
+            public void onResponse(final Call call, final Response response) {
+                String content = null;
+                try {
+                    content = response.body().string();
+                } catch (IOException exc) {
+                } finally {
+                    response.close();
+                }
+                LoadTest.this.done(route, intended, response.isSuccessful() && content != null, content);
+            }
+        });
+    }
+
+    // учёт завершённого запроса
+    private void done(final Route route, final long intended, final boolean ok, final String content) {
+        route.recorder.recordValue(Math.max(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended), 0));
+
+        if (!ok || !content.startsWith("{\"code\":200")) {
+            route.errors.incrementAndGet();
+        } else if (route == this.createSchedule || route == this.modifySchedule) {
+            // созданный или изменённый сеанс снова доступен для изменения и удаления
+            final int at = content.indexOf("\"id\":");
+            if (at >= 0) {
+                int end = at + 5;
+                while (end < content.length() && Character.isDigit(content.charAt(end))) {
+                    end++;
+                }
+                this.created.offer(Integer.valueOf(content.substring(at + 5, end)));
+            }
+        }
+
+        this.inFlight.decrementAndGet();
+    }
+
+    // запись отчёта в формате JSON
+    private void write(final double elapsed) throws IOException {
+        final ObjectMapper mapper = new ObjectMapper();
+        final ObjectNode   root   = mapper.createObjectNode();
+
+        root.put("rate",      this.rate);
+        root.put("duration",  this.duration);
+        root.put("movies",    this.movies);
+        root.put("schedules", this.schedules);
+        root.put("elapsed",   elapsed);
+
+        final Histogram  all    = new Histogram(TimeUnit.MINUTES.toMicros(1), 3);
+        final ObjectNode routes = root.putObject("routes");
+        long errors = 0;
+
+        for (final Route route : this.routes) {
+            final Histogram histogram = route.recorder.getIntervalHistogram();
+            all.add(histogram);
+            errors += route.errors.get();
+
+            LoadTest.stats(routes.putObject(route.name), histogram, route.errors.get(), elapsed);
+        }
+        LoadTest.stats(root.putObject("total"), all, errors, elapsed);
+
+        this.report.getParentFile().mkdirs();
+        mapper.writerWithDefaultPrettyPrinter().writeValue(this.report, root);
+
+        System.out.println(new String(Files.readAllBytes(this.report.toPath()), StandardCharsets.UTF_8));
+    }
+
+    // статистика по гистограмме задержек (в миллисекундах)
+    private static void stats(final ObjectNode node, final Histogram histogram, final long errors, final double elapsed) {
+        node.put("count",      histogram.getTotalCount());
+        node.put("errors",     errors);
+        node.put("throughput", histogram.getTotalCount() / elapsed);
+        node.put("p50",        histogram.getValueAtPercentile(50.0)  / 1000.0);
+        node.put("p99",        histogram.getValueAtPercentile(99.0)  / 1000.0);
+        node.put("p999",       histogram.getValueAtPercentile(99.9)  / 1000.0);
+        node.put("max",        histogram.getMaxValue()               / 1000.0);
+    }
+
+    // GET-запрос
+    private Request get(final String path) {
+        return new Request.Builder().url(LoadTest.API_URL_PREFIX + path).build();
+    }
+
+    // запрос с телом в формате JSON
+    private Request body(final String path, final String method, final String json) {
+        return new Request.Builder()
+            .url(LoadTest.API_URL_PREFIX + path)
+            .method(method, RequestBody.create(LoadTest.JSON, json))
+            .build();
+    }
+
+    // синхронный POST-запрос при заполнении базы данных; пакетный запрос отвечает кодом 200
+    // и при отклоненных элементах, поэтому проверяется и код каждого элемента пакета
+    private void post(final String path, final String body, final ObjectMapper mapper) throws IOException {
+        try (Response response = this.client.newCall(this.body(path, "POST", body)).execute()) {
+            final JsonNode result = mapper.readTree(response.body().string());
+            if (result.path("code").asInt() != 200) {
+                throw new IOException("Seeding failed: " + result);
+            }
+            for (final JsonNode item : result.path("data")) {
+                if (item.path("code").asInt() != 200) {
+                    throw new IOException("Seeding failed: " + item);
+                }
+            }
+        }
+    }
+
+    // данные сеанса в формате JSON
+    private static String schedule(final int id, final int movieId, final int slot) {
+        return "{" +
+            (id != 0 ? "\"id\":" + id + "," : "") +
+            "\"movieId\":" + movieId + "," +
+            "\"dateAndTime\":\"" + LoadTest.dateAndTime(slot) + "\"," +
+            "\"auditorium\":" + (1 + slot % LoadTest.HALLS) +
+        "}";
+    }
+
+    // дата и время сеанса по номеру слота: слоты раскладываются по залам и трехчасовым интервалам суток подряд,
+    // поэтому сеансы в разных слотах не пересекаются (фильмы короче трех часов)
+    private static String dateAndTime(final int slot) {
+        return String.format(
+            "%s %02d:00",
+            LoadTest.FIRST_DAY.plusDays(slot / (LoadTest.HALLS * LoadTest.SLOTS_PER_DAY)),
+            3 * (slot / LoadTest.HALLS % LoadTest.SLOTS_PER_DAY)
+        );
+    }
+}
@@ -5,17 +5,35 @@ import io.jooby.Jooby;
 import io.jooby.MediaType;
 
 import java.io.File;
+import java.lang.reflect.Type;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jooq.DSLContext;
+import org.jooq.exception.DataAccessException;
 
+import tv.lid.cinema.api4.codecs.Compression;
+import tv.lid.cinema.api4.codecs.JsonCodec;
 import tv.lid.cinema.api4.config.Config;
+import tv.lid.cinema.api4.controllers.CommonController;
 import tv.lid.cinema.api4.controllers.MovieController;
 import tv.lid.cinema.api4.controllers.ScheduleController;
+import tv.lid.cinema.api4.controllers.StatsController;
+import tv.lid.cinema.api4.metrics.Metrics;
+import tv.lid.cinema.api4.models.AsyncRepository;
 import tv.lid.cinema.api4.models.CommonModel;
+import tv.lid.cinema.api4.models.CountStrategy;
+import tv.lid.cinema.api4.models.EntityCache;
 import tv.lid.cinema.api4.models.MovieModel;
+import tv.lid.cinema.api4.models.PageCache;
+import tv.lid.cinema.api4.models.ReadRouting;
 import tv.lid.cinema.api4.models.ScheduleModel;
+import tv.lid.cinema.api4.models.Shards;
 import tv.lid.cinema.api4.storages.DatabaseStorage;
 
 // главный класс приложения
@@ -23,58 +41,89 @@ public class App extends Jooby {
     // различные варианты запуска приложения
     private static final String CMD_OPERATE   = "operate",
                                 CMD_INSTALL   = "install",
-                                CMD_UNINSTALL = "uninstall";
+                                CMD_UNINSTALL = "uninstall",
+                                CMD_UPGRADE   = "upgrade";
+
+    // тип результата асинхронных обработчиков (Jooby не ждет его в рабочем потоке)
+    private static final Type ASYNC = CompletableFuture.class;
 
     // база данных
     private static DatabaseStorage dbs = null;
 
+    // реплики базы данных для чтения
+    private static final List<DatabaseStorage> replicas = new ArrayList<>();
+
+    // шарды таблицы сеансов
+    private static final List<DatabaseStorage> shards = new ArrayList<>();
+
     // экземпляр приложения
     private static Jooby instance = null;
 
+    // исполнитель обработчиков (null -- режим Jooby по умолчанию)
+    private static ExecutorService executor = null;
+
+    // JSON-кодек, общий для всех запросов
+    private static final JsonCodec codec = new JsonCodec().register(
+        MovieModel.class,
+        ScheduleModel.class,
+        CommonController.Result.class,
+        CommonController.ListWrapper.class,
+        CommonController.BatchItem.class
+    );
+
     // инициализация класса
     {
-        decoder(MediaType.json, (ctx, type) -> {
-            try {
-                return (new ObjectMapper())
-                    .readValue(
-                        ctx.body().bytes(),
-                        Class.forName(type.getTypeName())
-                    );
-            } catch (ClassNotFoundException | JsonProcessingException exc) {
-                return null;
-            }
-        });
+        decoder(MediaType.json, App.codec);
+        encoder(MediaType.json, App.codec);
 
-        encoder(MediaType.json, (ctx, result) -> {
-            ctx.setDefaultResponseType(MediaType.json);
+        // замер времени работы всех обработчиков
+        decorator(Metrics.decorator());
 
-            try {
-                return (new ObjectMapper()).writeValueAsBytes(result);
-            } catch (JsonProcessingException exc) {
-                return null;
-            }
-        });
+        // чтение своих записей при работе с репликами
+        decorator(CommonController.readYourWrites());
+
+        // блокирующие обработчики выполняются на выделенном исполнителе, если он задан
+        if (App.executor != null) {
+            dispatch(App.executor, this::routes);
+        } else {
+            this.routes();
+        }
+    }
 
+    // маршруты API
+    private void routes() {
         path("/api4", () -> {
             // фильмы
             final MovieController movCtr = new MovieController();
 
-            get("/movies",        movCtr.list);
-            get("/movies/{page}", movCtr.list);
+            get("/movies",        movCtr.list).setReturnType(App.ASYNC);
+            get("/movies/export", movCtr.export);
+            get("/movies/search", movCtr.search);
+            get("/movies/{page}", movCtr.list).setReturnType(App.ASYNC);
             post("/movie",        movCtr.create);
-            get("/movie/{id}",    movCtr.find);
+            post("/movies/batch", movCtr.batch);
+            get("/movie/{id}",    movCtr.find).setReturnType(App.ASYNC);
             put("/movie",         movCtr.modify);
             delete("/movie/{id}", movCtr.kill);
 
             // сеансы
             final ScheduleController schCtr = new ScheduleController();
 
-            get("/schedules/{movieId}",        schCtr.list);
-            get("/schedules/{movieId}/{page}", schCtr.list);
+            get("/schedules",                  schCtr.range).setReturnType(App.ASYNC);
+            get("/schedules/export",           schCtr.export);
+            get("/schedules/{movieId}",        schCtr.list).setReturnType(App.ASYNC);
+            get("/schedules/{movieId}/{page}", schCtr.list).setReturnType(App.ASYNC);
             post("/schedule",                  schCtr.create);
-            get("/schedule/{id}",              schCtr.find);
+            post("/schedules/batch",           schCtr.batch);
+            get("/schedule/{id}",              schCtr.find).setReturnType(App.ASYNC);
             put("/schedule",                   schCtr.modify);
             delete("/schedule/{id}",           schCtr.kill);
+
+            // статистика
+            final StatsController stsCtr = new StatsController();
+
+            get("/stats/cache", stsCtr.cache);
+            get("/metrics",     stsCtr.metrics);
         });
     }
 
@@ -82,6 +131,14 @@ public class App extends Jooby {
     private static void install() throws SQLException {
         MovieModel.createTable();
         ScheduleModel.createTable();
+        App.upgrade();
+    }
+
+    // приведение схемы базы данных к текущей версии и создание индексов
+    public static void upgrade() throws SQLException {
+        ScheduleModel.upgradeTable();
+        MovieModel.createIndexes();
+        ScheduleModel.createIndexes();
     }
 
     // удаление таблиц из базы данных
@@ -91,11 +148,39 @@ public class App extends Jooby {
     }
 
     // нормальная работа приложения
-    private static void operate(final String[] args) {
+    private static void operate(final String[] args) throws SQLException {
+        // индексы названий фильмов и занятости залов строятся до приема запросов
+        MovieModel.indexTitles();
+        ScheduleModel.indexAuditoriums();
+
         App.instance = createApp(args, ExecutionMode.DEFAULT, App::new);
         App.instance.start();
     }
 
+    // исполнитель обработчиков для заданного режима сервера, null -- режим Jooby по умолчанию;
+    // UnsupportedOperationException, если режим неизвестен или недоступен в этой JVM
+    private static ExecutorService executor(final Config.Server cfgServer) {
+        if (cfgServer.mode.equalsIgnoreCase(Config.Server.MODE_DEFAULT)) {
+            return null;
+        } else if (cfgServer.mode.equalsIgnoreCase(Config.Server.MODE_WORKER)) {
+            final AtomicInteger counter = new AtomicInteger();
+
+            return Executors.newFixedThreadPool(cfgServer.workers, task -> {
+                final Thread thread = new Thread(task, "api4-worker-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else if (cfgServer.mode.equalsIgnoreCase(Config.Server.MODE_VIRTUAL)) {
+            // виртуальные потоки доступны начиная с Java 21, исходный код остается совместимым с Java 8
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException exc) {
+                throw new UnsupportedOperationException("virtual threads require Java 21 or later");
+            }
+        }
+        throw new UnsupportedOperationException("unknown mode \"" + cfgServer.mode + "\"");
+    }
+
     public static void main(final String[] args) {
         // файл конфигурации приложения
         final File file = args.length == 2 ? new File(args[1]) : null;
@@ -110,14 +195,69 @@ public class App extends Jooby {
             return;
         }
 
+        // режим сервера проверяется до подключения к БД: неподдерживаемый режим -- ошибка запуска,
+        // а не работа в другом режиме, чем указано в конфигурации
+        if (args.length == 0 || args[0].equals(App.CMD_OPERATE)) {
+            try {
+                App.executor = App.executor(cfg.server);
+            } catch (UnsupportedOperationException exc) {
+                System.out.println("Unsupported server mode was specified (" + exc.getMessage() + ")! Exiting...\n\n");
+                return;
+            }
+        }
+
         // инициализация соединения с БД и подключение
         try {
             // подключение к серверу БД
             App.dbs = DatabaseStorage.initialize(cfg.database);
             App.dbs.connect();
 
+            // подключение к репликам для чтения
+            final List<DSLContext> readers = new ArrayList<>();
+            for (final Config.Node replica : cfg.database.replicas) {
+                final DatabaseStorage storage = DatabaseStorage.initialize(
+                    cfg.database.node(replica),
+                    "replica" + (App.replicas.size() + 1)
+                );
+                storage.connect();
+
+                App.replicas.add(storage);
+                readers.add(storage.dslContext());
+            }
+
+            // подключение к шардам таблицы сеансов
+            final List<DSLContext> shards = new ArrayList<>();
+            for (final Config.Node shard : cfg.database.shards) {
+                final DatabaseStorage storage = DatabaseStorage.initialize(
+                    cfg.database.node(shard),
+                    "shard" + (App.shards.size() + 1)
+                );
+                storage.connect();
+
+                App.shards.add(storage);
+                shards.add(storage.dslContext());
+            }
+
             // инициализация моделей
-            CommonModel.initialize(App.dbs.dslContext());
+            CommonModel.initialize(
+                App.dbs.dslContext(),
+                CountStrategy.of(cfg.database.countStrategy)
+            );
+            EntityCache.configure(cfg.cache.size, cfg.cache.ttl);
+            PageCache.configure(cfg.cache.pages);
+            AsyncRepository.configure(cfg.database.pool.maxSize, cfg.server.queue);
+            ReadRouting.configure(readers, cfg.database.replicaLag, cfg.database.healthInterval);
+            Shards.configure(shards);
+            Compression.configure(cfg.compression.enabled, cfg.compression.minSize, cfg.compression.level);
+
+            // показатели доступности реплик
+            Metrics.unregister("api4_db_replicas");
+            if (ReadRouting.enabled()) {
+                final String help = "Read replicas by health state.";
+
+                Metrics.gauge("api4_db_replicas", "state=\"healthy\"", help, ReadRouting::healthy);
+                Metrics.gauge("api4_db_replicas", "state=\"total\"",   help, ReadRouting::total);
+            }
         } catch (SQLException exc) {
             System.out.println("Unable to initialize the database storage! Exiting...\n\n");
             return;
@@ -133,6 +273,9 @@ public class App extends Jooby {
                 } catch (SQLException exc) {
                     System.out.println("Unable to finalize the database storage!\n\n");
                 }
+
+                // разрыв соединений с репликами и шардами
+                App.disconnectNodes();
             }
         });
 
@@ -144,21 +287,48 @@ public class App extends Jooby {
                 App.install();
             } else if (args[0].equals(App.CMD_UNINSTALL)) { // удаление таблиц
                 App.uninstall();
+            } else if (args[0].equals(App.CMD_UPGRADE)) { // обновление схемы
+                App.upgrade();
             } else {
                 throw new Exception();
             }
-        } catch (SQLException exc) {
+        } catch (SQLException | DataAccessException exc) {
             System.out.println("SQL exception occured during the execution! Exiting...\n\n");
         } catch (Exception exc) {
             System.out.println("Incorrect command line arguments were specified! Exiting...\n\n");
         }
     }
 
+    // JSON-кодек приложения
+    public static JsonCodec codec() {
+        return App.codec;
+    }
+
     // проверка нормального режима работы приложения
     public static boolean listens() {
         return App.dbs != null && App.instance != null;
     }
 
+    // разрыв соединений с репликами и шардами
+    private static synchronized void disconnectNodes() {
+        ReadRouting.shutdown();
+        Shards.configure(new ArrayList<>());
+
+        for (final DatabaseStorage storage : App.replicas) {
+            try {
+                storage.disconnect();
+            } catch (Exception exc) {}
+        }
+        App.replicas.clear();
+
+        for (final DatabaseStorage storage : App.shards) {
+            try {
+                storage.disconnect();
+            } catch (Exception exc) {}
+        }
+        App.shards.clear();
+    }
+
     // принудительный останов приложения
     public static void halt() {
         if (App.dbs != null) {
@@ -166,8 +336,13 @@ public class App extends Jooby {
                 App.dbs.disconnect();
             } catch (Exception exc) {}
         }
+        App.disconnectNodes();
         if (App.instance != null) {
             App.instance.stop();
         }
+        if (App.executor != null) {
+            App.executor.shutdown();
+            App.executor = null;
+        }
     }
 }
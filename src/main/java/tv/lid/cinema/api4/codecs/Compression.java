@@ -0,0 +1,139 @@
+package tv.lid.cinema.api4.codecs;
+
+import io.jooby.Context;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+// согласование и выполнение сжатия ответов по заголовку Accept-Encoding
+public final class Compression {
+    // имя кодирования gzip
+    private static final String GZIP = "gzip";
+
+    // размер буфера потока сжатия
+    private static final int BUFFER_SIZE = 8192;
+
+    // сжатие включено
+    private static volatile boolean enabled = true;
+
+    // минимальный размер тела для сжатия, байт
+    private static volatile int minSize = 256;
+
+    // уровень сжатия (1 -- быстрее, 9 -- сильнее)
+    private static volatile int level = 6;
+
+    // конструктор
+    private Compression() {}
+
+    // настройка сжатия
+    public static void configure(final boolean enabled, final int minSize, final int level) {
+        Compression.enabled = enabled;
+        Compression.minSize = Math.max(minSize, 0);
+        Compression.level   = Math.min(Math.max(level, 1), 9);
+    }
+
+    // выбор представления тела ответа: сжатое, если клиент его принимает и тело не меньше порога
+    public static byte[] negotiate(final Context ctx, final EncodedBody body) {
+        if (!Compression.enabled || body.identity.length < Compression.minSize) {
+            return body.identity;
+        }
+
+        // представление ответа зависит от Accept-Encoding
+        ctx.setResponseHeader("Vary", "Accept-Encoding");
+
+        if (!Compression.accepts(ctx)) {
+            return body.identity;
+        }
+
+        ctx.setResponseHeader("Content-Encoding", Compression.GZIP);
+
+        // у сжатого представления свой сильный ETag
+        final String etag = ctx.getResponseHeader("ETag");
+        if (etag != null) {
+            ctx.setResponseHeader("ETag", Compression.variant(etag));
+        }
+
+        return body.gzip();
+    }
+
+    // заблаговременное сжатие тела, которое будет сжиматься при отдаче (для тел, сохраняемых в кэше)
+    public static EncodedBody precompress(final EncodedBody body) {
+        if (Compression.enabled && body.identity.length >= Compression.minSize) {
+            body.gzip();
+        }
+        return body;
+    }
+
+    // сжимающий поток для потоковой выгрузки, если клиент принимает gzip, иначе исходный поток
+    public static OutputStream stream(final Context ctx, final OutputStream out) throws IOException {
+        if (!Compression.enabled || !Compression.accepts(ctx)) {
+            return out;
+        }
+
+        return new GZIPOutputStream(out, Compression.BUFFER_SIZE) {
+            {
+                this.def.setLevel(Compression.level);
+            }
+        };
+    }
+
+    // настройка заголовков потоковой выгрузки перед началом ответа
+    public static void prepare(final Context ctx) {
+        if (Compression.enabled) {
+            ctx.setResponseHeader("Vary", "Accept-Encoding");
+            if (Compression.accepts(ctx)) {
+                ctx.setResponseHeader("Content-Encoding", Compression.GZIP);
+            }
+        }
+    }
+
+    // ETag сжатого представления
+    public static String variant(final String etag) {
+        return etag.endsWith("\"")
+            ? etag.substring(0, etag.length() - 1) + "+" + Compression.GZIP + "\""
+            : etag;
+    }
+
+    // сжатие массива байтов
+    static byte[] gzip(final byte[] bytes) {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 4 + 64);
+
+        try (GZIPOutputStream out = new GZIPOutputStream(buffer, Compression.BUFFER_SIZE) {
+            {
+                this.def.setLevel(Compression.level);
+            }
+        }) {
+            out.write(bytes);
+        } catch (IOException exc) {
+            throw new UncheckedIOException(exc);
+        }
+
+        return buffer.toByteArray();
+    }
+
+    // клиент принимает gzip (с ненулевым весом)
+    private static boolean accepts(final Context ctx) {
+        final String header = ctx.header("Accept-Encoding").valueOrNull();
+        if (header == null) {
+            return false;
+        }
+
+        boolean any = false;
+        for (final String item : header.split(",")) {
+            final String[] parts  = item.trim().split(";");
+            final String   coding = parts[0].trim();
+            final boolean  zero   = parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?");
+
+            if (coding.equalsIgnoreCase(Compression.GZIP)) {
+                return !zero;
+            }
+            if (coding.equals("*")) {
+                any = !zero;
+            }
+        }
+        return any;
+    }
+}
@@ -0,0 +1,32 @@
+package tv.lid.cinema.api4.codecs;
+
+// закодированное тело ответа вместе с его сжатым представлением, которое вычисляется один раз
+public final class EncodedBody {
+    // несжатые байты
+    public final byte[] identity;
+
+    // сжатые gzip байты (вычисляются при первом запросе)
+    private volatile byte[] gzip = null;
+
+    // конструктор
+    public EncodedBody(final byte[] identity) {
+        this.identity = identity;
+    }
+
+    // сжатое gzip представление
+    byte[] gzip() {
+        byte[] bytes = this.gzip;
+        if (bytes == null) {
+            // при одновременном первом запросе данные могут быть сжаты дважды, результат одинаков
+            bytes = Compression.gzip(this.identity);
+            this.gzip = bytes;
+        }
+        return bytes;
+    }
+
+    // общий объем хранимых байтов
+    public int weight() {
+        final byte[] bytes = this.gzip;
+        return this.identity.length + (bytes != null ? bytes.length : 0);
+    }
+}
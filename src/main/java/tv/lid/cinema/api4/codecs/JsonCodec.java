@@ -0,0 +1,108 @@
+package tv.lid.cinema.api4.codecs;
+
+import io.jooby.Context;
+import io.jooby.MediaType;
+import io.jooby.MessageDecoder;
+import io.jooby.MessageEncoder;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+// JSON-кодек: один настроенный ObjectMapper и закэшированные reader/writer для каждого типа
+public final class JsonCodec implements MessageDecoder, MessageEncoder {
+    // общий экземпляр маппера (потокобезопасен после настройки)
+    private final ObjectMapper mapper;
+
+    // reader'ы по типам входящих данных
+    private final ConcurrentMap<Type, ObjectReader> readers = new ConcurrentHashMap<>();
+
+    // writer'ы по классам исходящих данных
+    private final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    // конструктор #1
+    public JsonCodec(final ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    // конструктор #2
+    public JsonCodec() {
+        this(new ObjectMapper());
+    }
+
+    // предварительное создание reader'ов и writer'ов для заданных типов
+    public JsonCodec register(final Class<?>... types) {
+        for (final Class<?> type : types) {
+            this.reader(type);
+            this.writer(type);
+        }
+        return this;
+    }
+
+    // общий экземпляр маппера
+    public ObjectMapper mapper() {
+        return this.mapper;
+    }
+
+    // reader для заданного типа
+    public ObjectReader reader(final Type type) {
+        ObjectReader reader = this.readers.get(type);
+        if (reader == null) {
+            reader = this.mapper.readerFor(this.mapper.constructType(type));
+
+            final ObjectReader prev = this.readers.putIfAbsent(type, reader);
+            if (prev != null) {
+                reader = prev;
+            }
+        }
+        return reader;
+    }
+
+    // writer для заданного класса
+    public ObjectWriter writer(final Class<?> type) {
+        ObjectWriter writer = this.writers.get(type);
+        if (writer == null) {
+            writer = this.mapper.writerFor(type);
+
+            final ObjectWriter prev = this.writers.putIfAbsent(type, writer);
+            if (prev != null) {
+                writer = prev;
+            }
+        }
+        return writer;
+    }
+
+    // декодирование тела запроса
+    @Override
+    public Object decode(final Context ctx, final Type type) {
+        try {
+            return this.reader(type).readValue(ctx.body().bytes());
+        } catch (IOException exc) {
+            return null;
+        }
+    }
+
+    // кодирование ответа (готовое тело передается как есть) с согласованием сжатия
+    @Override
+    public byte[] encode(final Context ctx, final Object value) {
+        ctx.setDefaultResponseType(MediaType.json);
+
+        final EncodedBody body;
+        if (value instanceof EncodedBody) {
+            body = (EncodedBody) value;
+        } else {
+            try {
+                body = new EncodedBody(this.writer(value.getClass()).writeValueAsBytes(value));
+            } catch (IOException exc) {
+                return null;
+            }
+        }
+
+        return Compression.negotiate(ctx, body);
+    }
+}
@@ -1,6 +1,8 @@
 package tv.lid.cinema.api4.config;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -11,8 +13,225 @@ public final class Config {
     // имя файла с настройками
     private static final String CONFIG_FILE = "config.json";
 
+    // внутренний класс конфигурации пула соединений
+    public static class Pool {
+        // дефолтные параметры пула соединений
+        private static final int DEFAULT_MIN_SIZE           = 2,     // минимальное количество простаивающих соединений
+                                 DEFAULT_MAX_SIZE           = 10,    // максимальное количество соединений
+                                 DEFAULT_ACQUIRE_TIMEOUT    = 30000, // таймаут получения соединения, мс
+                                 DEFAULT_VALIDATION_TIMEOUT = 5000,  // таймаут проверки соединения, мс
+                                 DEFAULT_LEAK_DETECTION     = 0,     // порог обнаружения утечек, мс (0 -- отключено)
+                                 DEFAULT_STATEMENT_CACHE    = 256;   // размер кэша подготовленных запросов соединения
+
+        // минимальное количество простаивающих соединений
+        @JsonProperty(value = "minSize", required = false, defaultValue = "2")
+        public final int minSize;
+
+        // максимальное количество соединений
+        @JsonProperty(value = "maxSize", required = false, defaultValue = "10")
+        public final int maxSize;
+
+        // таймаут получения соединения из пула, мс
+        @JsonProperty(value = "acquireTimeout", required = false, defaultValue = "30000")
+        public final int acquireTimeout;
+
+        // таймаут проверки соединения, мс
+        @JsonProperty(value = "validationTimeout", required = false, defaultValue = "5000")
+        public final int validationTimeout;
+
+        // запрос для проверки соединения (если не задан, используется Connection.isValid())
+        @JsonProperty(value = "validationQuery", required = false)
+        public final String validationQuery;
+
+        // порог обнаружения утечек соединений, мс (0 -- отключено)
+        @JsonProperty(value = "leakDetection", required = false, defaultValue = "0")
+        public final int leakDetection;
+
+        // размер кэша подготовленных запросов драйвера на каждое соединение (0 -- отключен)
+        @JsonProperty(value = "statementCache", required = false, defaultValue = "256")
+        public final int statementCache;
+
+        // конструктор #1
+        @JsonCreator
+        public Pool(
+            @JsonProperty("minSize")           final Integer minSize,
+            @JsonProperty("maxSize")           final Integer maxSize,
+            @JsonProperty("acquireTimeout")    final Integer acquireTimeout,
+            @JsonProperty("validationTimeout") final Integer validationTimeout,
+            @JsonProperty("validationQuery")   final String  validationQuery,
+            @JsonProperty("leakDetection")     final Integer leakDetection,
+            @JsonProperty("statementCache")    final Integer statementCache
+        ) {
+            this.minSize           = minSize           != null ? minSize           : Pool.DEFAULT_MIN_SIZE;
+            this.maxSize           = maxSize           != null ? maxSize           : Pool.DEFAULT_MAX_SIZE;
+            this.acquireTimeout    = acquireTimeout    != null ? acquireTimeout    : Pool.DEFAULT_ACQUIRE_TIMEOUT;
+            this.validationTimeout = validationTimeout != null ? validationTimeout : Pool.DEFAULT_VALIDATION_TIMEOUT;
+            this.validationQuery   = validationQuery;
+            this.leakDetection     = leakDetection     != null ? leakDetection     : Pool.DEFAULT_LEAK_DETECTION;
+            this.statementCache    = statementCache    != null ? statementCache    : Pool.DEFAULT_STATEMENT_CACHE;
+        }
+
+        // конструктор #2
+        public Pool() {
+            this(null, null, null, null, null, null, null);
+        }
+    }
+
+    // внутренний класс конфигурации кэша записей
+    public static class Cache {
+        // дефолтные параметры кэша
+        private static final long DEFAULT_SIZE  = 10000,             // максимальное количество записей каждого типа
+                                  DEFAULT_TTL   = 300,               // время жизни записи, секунд
+                                  DEFAULT_PAGES = 16L * 1024 * 1024; // объем кэша готовых страниц, байт
+
+        // максимальное количество записей каждого типа (0 -- кэш отключен)
+        @JsonProperty(value = "size", required = false, defaultValue = "10000")
+        public final long size;
+
+        // время жизни записи в кэше, секунд
+        @JsonProperty(value = "ttl", required = false, defaultValue = "300")
+        public final long ttl;
+
+        // объем кэша готовых страниц списков, байт (0 -- кэш отключен)
+        @JsonProperty(value = "pages", required = false, defaultValue = "16777216")
+        public final long pages;
+
+        // конструктор #1
+        @JsonCreator
+        public Cache(
+            @JsonProperty("size")  final Long size,
+            @JsonProperty("ttl")   final Long ttl,
+            @JsonProperty("pages") final Long pages
+        ) {
+            this.size  = size  != null ? size  : Cache.DEFAULT_SIZE;
+            this.ttl   = ttl   != null ? ttl   : Cache.DEFAULT_TTL;
+            this.pages = pages != null ? pages : Cache.DEFAULT_PAGES;
+        }
+
+        // конструктор #2
+        public Cache() {
+            this(null, null, null);
+        }
+    }
+
+    // внутренний класс конфигурации HTTP-сервера
+    public static class Server {
+        // режимы выполнения обработчиков
+        public static final String MODE_DEFAULT = "default", // режим Jooby по умолчанию
+                                   MODE_WORKER  = "worker",  // пул потоков заданного размера
+                                   MODE_VIRTUAL = "virtual"; // виртуальные потоки (Java 21+)
+
+        // дефолтные параметры сервера
+        private static final String DEFAULT_MODE    = MODE_DEFAULT;
+        private static final int    DEFAULT_WORKERS = 64,
+                                    DEFAULT_QUEUE   = 1024;
+
+        // режим выполнения обработчиков
+        @JsonProperty(value = "mode", required = false, defaultValue = "default")
+        public final String mode;
+
+        // количество потоков пула для режима worker
+        @JsonProperty(value = "workers", required = false, defaultValue = "64")
+        public final int workers;
+
+        // максимальное количество запросов к БД, ожидающих выполнения на пуле асинхронных обработчиков
+        @JsonProperty(value = "queue", required = false, defaultValue = "1024")
+        public final int queue;
+
+        // конструктор #1
+        @JsonCreator
+        public Server(
+            @JsonProperty("mode")    final String  mode,
+            @JsonProperty("workers") final Integer workers,
+            @JsonProperty("queue")   final Integer queue
+        ) {
+            this.mode    = mode    != null ? mode    : Server.DEFAULT_MODE;
+            this.workers = workers != null ? workers : Server.DEFAULT_WORKERS;
+            this.queue   = queue   != null ? queue   : Server.DEFAULT_QUEUE;
+        }
+
+        // конструктор #2
+        public Server() {
+            this(null, null, null);
+        }
+    }
+
+    // внутренний класс конфигурации сжатия ответов
+    public static class Compression {
+        // дефолтные параметры сжатия
+        private static final boolean DEFAULT_ENABLED  = true;
+        private static final int     DEFAULT_MIN_SIZE = 256,  // минимальный размер тела для сжатия, байт
+                                     DEFAULT_LEVEL    = 6;    // уровень сжатия gzip
+
+        // сжатие включено
+        @JsonProperty(value = "enabled", required = false, defaultValue = "true")
+        public final boolean enabled;
+
+        // минимальный размер тела ответа для сжатия, байт
+        @JsonProperty(value = "minSize", required = false, defaultValue = "256")
+        public final int minSize;
+
+        // уровень сжатия gzip (1 -- быстрее, 9 -- сильнее)
+        @JsonProperty(value = "level", required = false, defaultValue = "6")
+        public final int level;
+
+        // конструктор #1
+        @JsonCreator
+        public Compression(
+            @JsonProperty("enabled") final Boolean enabled,
+            @JsonProperty("minSize") final Integer minSize,
+            @JsonProperty("level")   final Integer level
+        ) {
+            this.enabled = enabled != null ? enabled : Compression.DEFAULT_ENABLED;
+            this.minSize = minSize != null ? minSize : Compression.DEFAULT_MIN_SIZE;
+            this.level   = level   != null ? level   : Compression.DEFAULT_LEVEL;
+        }
+
+        // конструктор #2
+        public Compression() {
+            this(null, null, null);
+        }
+    }
+
+    // внутренний класс конфигурации дополнительного узла базы данных (реплики либо шарда)
+    public static class Node {
+        // хост для подключения к узлу
+        @JsonProperty(value = "host", required = true)
+        public final String host;
+
+        // порт для подключения к узлу
+        @JsonProperty(value = "port", required = true)
+        public final int port;
+
+        // имя базы данных на узле (пусто -- как у основного сервера)
+        @JsonProperty(value = "name", required = false, defaultValue = "")
+        public final String name;
+
+        // имя файла базы данных на узле (только для H2, пусто -- как у основного сервера)
+        @JsonProperty(value = "file", required = false, defaultValue = "")
+        public final String file;
+
+        // конструктор
+        @JsonCreator
+        public Node(
+            @JsonProperty("host") final String host,
+            @JsonProperty("port") final int    port,
+            @JsonProperty("name") final String name,
+            @JsonProperty("file") final String file
+        ) {
+            this.host = host;
+            this.port = port;
+            this.name = name;
+            this.file = file;
+        }
+    }
+
     // внутренний класс конфигурации базы данных
     public static class Database {
+        // дефолтные параметры работы с репликами
+        private static final long DEFAULT_REPLICA_LAG     = 1000, // максимальное отставание реплик, мс
+                                  DEFAULT_HEALTH_INTERVAL = 5000; // интервал проверки доступности реплик, мс
+
         // тип базы данных
         @JsonProperty(value = "type", required = true)
         public final String type;
@@ -29,6 +248,18 @@ public final class Config {
         @JsonProperty(value = "file", required = false, defaultValue = "")
         public final String file;
     
+        // режим работы с базой данных (только для H2: embedded или tcp)
+        @JsonProperty(value = "mode", required = false, defaultValue = "embedded")
+        public final String mode;
+
+        // размер кэша базы данных в килобайтах (только для H2, 0 -- по умолчанию)
+        @JsonProperty(value = "cacheSize", required = false, defaultValue = "0")
+        public final int cacheSize;
+
+        // запуск TCP-сервера для внешних инструментов во встроенном режиме (только для H2)
+        @JsonProperty(value = "tcpServer", required = false, defaultValue = "false")
+        public final boolean tcpServer;
+    
         // хост для подключения к серверу базы данных
         @JsonProperty(value = "host", required = true)
         public final String host;
@@ -44,27 +275,92 @@ public final class Config {
         // пароль пользователя для подключения к серверу базы данных
         @JsonProperty(value = "pass", required = true)
         public final String pass;
+
+        // стратегия подсчета количества записей для постраничного вывода (exact, window, cached, estimate)
+        @JsonProperty(value = "countStrategy", required = false, defaultValue = "exact")
+        public final String countStrategy;
+
+        // параметры пула соединений
+        @JsonProperty(value = "pool", required = false)
+        public final Config.Pool pool;
+
+        // реплики для чтения (пользователь, пароль и параметры пула -- как у основного сервера)
+        @JsonProperty(value = "replicas", required = false)
+        public final List<Config.Node> replicas;
+
+        // шарды таблицы сеансов (пусто -- сеансы хранятся на основном сервере)
+        @JsonProperty(value = "shards", required = false)
+        public final List<Config.Node> shards;
+
+        // максимальное отставание реплик, мс: столько после записи клиент читает с основного сервера
+        @JsonProperty(value = "replicaLag", required = false, defaultValue = "1000")
+        public final long replicaLag;
+
+        // интервал проверки доступности реплик, мс
+        @JsonProperty(value = "healthInterval", required = false, defaultValue = "5000")
+        public final long healthInterval;
     
         // конструктор
         @JsonCreator
         public Database(
-            @JsonProperty("type") final String type,
-            @JsonProperty("name") final String name,
-            @JsonProperty("home") final String home,
-            @JsonProperty("file") final String file,
-            @JsonProperty("host") final String host,
-            @JsonProperty("port") final int    port,
-            @JsonProperty("user") final String user,
-            @JsonProperty("pass") final String pass
+            @JsonProperty("type")           final String               type,
+            @JsonProperty("name")           final String               name,
+            @JsonProperty("home")           final String               home,
+            @JsonProperty("file")           final String               file,
+            @JsonProperty("mode")           final String               mode,
+            @JsonProperty("cacheSize")      final int                  cacheSize,
+            @JsonProperty("tcpServer")      final boolean              tcpServer,
+            @JsonProperty("host")           final String               host,
+            @JsonProperty("port")           final int                  port,
+            @JsonProperty("user")           final String               user,
+            @JsonProperty("pass")           final String               pass,
+            @JsonProperty("countStrategy")  final String               countStrategy,
+            @JsonProperty("pool")           final Config.Pool          pool,
+            @JsonProperty("replicas")       final List<Config.Node>    replicas,
+            @JsonProperty("shards")         final List<Config.Node>    shards,
+            @JsonProperty("replicaLag")     final Long                 replicaLag,
+            @JsonProperty("healthInterval") final Long                 healthInterval
         ) {
-            this.type = type;
-            this.name = name;
-            this.home = home;
-            this.file = file;
-            this.host = host;
-            this.port = port;
-            this.user = user;
-            this.pass = pass;
+            this.type           = type;
+            this.name           = name;
+            this.home           = home;
+            this.file           = file;
+            this.mode           = mode;
+            this.cacheSize      = cacheSize;
+            this.tcpServer      = tcpServer;
+            this.host           = host;
+            this.port           = port;
+            this.user           = user;
+            this.pass           = pass;
+            this.countStrategy  = countStrategy;
+            this.pool           = pool           != null ? pool           : new Config.Pool();
+            this.replicas       = replicas       != null ? replicas       : new ArrayList<>();
+            this.shards         = shards         != null ? shards         : new ArrayList<>();
+            this.replicaLag     = replicaLag     != null ? replicaLag     : Database.DEFAULT_REPLICA_LAG;
+            this.healthInterval = healthInterval != null ? healthInterval : Database.DEFAULT_HEALTH_INTERVAL;
+        }
+
+        // конфигурация подключения к заданному узлу
+        public Config.Database node(final Config.Node node) {
+            return new Config.Database(
+                this.type,
+                node.name != null && !node.name.isEmpty() ? node.name : this.name,
+                this.home,
+                node.file != null && !node.file.isEmpty() ? node.file : this.file,
+                this.mode,
+                this.cacheSize,
+                false,
+                node.host,
+                node.port,
+                this.user,
+                this.pass,
+                this.countStrategy,
+                this.pool,
+                null,
+                null,
+                this.replicaLag,
+                this.healthInterval
+            );
         }
     }
 
@@ -72,12 +368,30 @@ public final class Config {
     @JsonProperty(value = "database", required = true)
     public final Config.Database database;
 
+    // конфигурация кэша записей
+    @JsonProperty(value = "cache", required = false)
+    public final Config.Cache cache;
+
+    // конфигурация HTTP-сервера
+    @JsonProperty(value = "server", required = false)
+    public final Config.Server server;
+
+    // конфигурация сжатия ответов
+    @JsonProperty(value = "compression", required = false)
+    public final Config.Compression compression;
+
     // конструктор
     @JsonCreator
     public Config(
-        @JsonProperty("database") final Config.Database database
+        @JsonProperty("database")    final Config.Database    database,
+        @JsonProperty("cache")       final Config.Cache       cache,
+        @JsonProperty("server")      final Config.Server      server,
+        @JsonProperty("compression") final Config.Compression compression
     ) {
-        this.database = database;
+        this.database    = database;
+        this.cache       = cache       != null ? cache       : new Config.Cache();
+        this.server      = server      != null ? server      : new Config.Server();
+        this.compression = compression != null ? compression : new Config.Compression();
     }
 
     // статический метод считывает конфигурацию из заданного файла
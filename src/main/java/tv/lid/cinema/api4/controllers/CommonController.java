@@ -1,17 +1,71 @@
 package tv.lid.cinema.api4.controllers;
 
+import io.jooby.Context;
+import io.jooby.Cookie;
+import io.jooby.MediaType;
+import io.jooby.Route;
+import io.jooby.Router;
+import io.jooby.StatusCode;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import tv.lid.cinema.api4.App;
+import tv.lid.cinema.api4.codecs.Compression;
+import tv.lid.cinema.api4.codecs.EncodedBody;
+import tv.lid.cinema.api4.models.AsyncRepository;
+import tv.lid.cinema.api4.models.CommonModel;
+import tv.lid.cinema.api4.models.Cursor;
+import tv.lid.cinema.api4.models.Page;
+import tv.lid.cinema.api4.models.PageCache;
+import tv.lid.cinema.api4.models.ReadRouting;
+import tv.lid.cinema.api4.models.Versions;
 
 // базовый абстрактный класс контроллера
 public abstract class CommonController {
+    // максимальное количество элементов в пакетном запросе
+    protected static final int BATCH_LIMIT = 10000;
+
+    // тип содержимого потоковой выгрузки
+    private static final MediaType NDJSON = MediaType.valueOf("application/x-ndjson");
+
+    // размер буфера записи потоковой выгрузки
+    private static final int EXPORT_BUFFER_SIZE = 16384;
+
+    // cookie с моментом, до которого клиент после записи читает с основного сервера, мс
+    private static final String COOKIE_PRIMARY_UNTIL = "api4-primary-until";
+
+    // формат дат в заголовках HTTP
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    // источник записей потоковой выгрузки
+    @FunctionalInterface
+    protected static interface Exporter<T> {
+        void export(CommonModel.Sink<T> sink) throws Exception;
+    }
     // множество кодов ответов сервера
     protected static enum Code {
         OK                    (200), // всё в порядке
         BAD_REQUEST           (400), // ошибка на стороне клиента
-        INTERNAL_SERVER_ERROR (500); // ошибка на стороне сервера
+        CONFLICT              (409), // конфликт с текущим состоянием данных
+        INTERNAL_SERVER_ERROR (500), // ошибка на стороне сервера
+        SERVICE_UNAVAILABLE   (503); // сервер перегружен
 
         private int code;
 
@@ -29,8 +83,12 @@ public abstract class CommonController {
                     return Code.OK;
                 case 400:
                     return Code.BAD_REQUEST;
+                case 409:
+                    return Code.CONFLICT;
                 case 500:
                     return Code.INTERNAL_SERVER_ERROR;
+                case 503:
+                    return Code.SERVICE_UNAVAILABLE;
                 default:
                     return null;
             }
@@ -39,7 +97,7 @@ public abstract class CommonController {
 
     // результат выполнения запроса
     @JsonInclude(Include.NON_NULL)
-    protected static class Result {
+    public static class Result {
         public final int    code; // код ответа
         public final Object data; // данные
         public final String info; // дополнительная информация
@@ -91,7 +149,7 @@ public abstract class CommonController {
 
     // ответ с ошибкой, c дополнительной информацией
     public final Result error(final Code code, final String info) {
-        return (code == Code.BAD_REQUEST || code == Code.INTERNAL_SERVER_ERROR) ? new Result(code, info) : null;
+        return code != Code.OK ? new Result(code, info) : null;
     }
 
     // ответ с ошибкой, без дополнительной информации
@@ -99,21 +157,264 @@ public abstract class CommonController {
         return this.error(code, null);
     }
 
+    // ответ с ошибкой асинхронного запроса: переполнение очереди запросов к БД либо ошибка сервера
+    public final Result failure(final Throwable exc, final String info) {
+        return AsyncRepository.cause(exc) instanceof RejectedExecutionException
+            ? this.error(Code.SERVICE_UNAVAILABLE, "Сервер перегружен, повторите запрос позже!")
+            : this.error(Code.INTERNAL_SERVER_ERROR, info);
+    }
+
+    // уже готовый ответ асинхронного обработчика
+    public final CompletableFuture<Result> completed(final Result result) {
+        return CompletableFuture.completedFuture(result);
+    }
+
+    // ответ 304 асинхронного обработчика: валидаторы актуальной версии без тела
+    public final CompletableFuture<Context> unchanged(final Context ctx, final Versions.Tag tag) {
+        return CompletableFuture.completedFuture(validated(ctx, tag, ctx).send(StatusCode.NOT_MODIFIED));
+    }
+
+    // сериализация успешного ответа со списком и сохранение его в кэше страниц
+    // под меткой версии, считанной до обращения к БД (null вместо ключа -- страница не кэшируется)
+    public final Object rendered(final String key, final Versions.Tag tag, final Result result) {
+        if (key == null || !PageCache.enabled()) {
+            return result;
+        }
+
+        final EncodedBody body;
+        try {
+            body = Compression.precompress(new EncodedBody(App.codec().writer(Result.class).writeValueAsBytes(result)));
+        } catch (IOException exc) {
+            return result;
+        }
+
+        PageCache.put(key, tag, body);
+        return body;
+    }
+
     // обертка для списка записей
+    @JsonInclude(Include.NON_NULL)
     public final class ListWrapper {
         public final List<? extends Object> list; // сам список
-        public final int total; // всего записей
-        public final int pages; // количество страниц
+        public final Integer total; // всего записей
+        public final Integer pages; // количество страниц
+        public final String next; // курсор следующей страницы
+        public final String prev; // курсор предыдущей страницы
 
-        // конструктор
+        // конструктор #1
         public ListWrapper(
             final List<? extends Object> list,
-            final int total,
-            final int pages
+            final Integer total,
+            final Integer pages,
+            final String next,
+            final String prev
         ) {
             this.list  = list;
             this.total = total;
             this.pages = pages;
+            this.next  = next;
+            this.prev  = prev;
+        }
+
+        // конструктор #2
+        public ListWrapper(
+            final List<? extends Object> list,
+            final Integer total,
+            final Integer pages
+        ) {
+            this(list, total, pages, null, null);
+        }
+
+        // конструктор #3 -- из страницы записей, total и pages не выводятся, если количество не подсчитывалось
+        public ListWrapper(
+            final Page<? extends CommonModel> page,
+            final int perPage
+        ) {
+            this(
+                page.list,
+                page.total >= 0 ? page.total : null,
+                page.total >= 0 ? (int) Math.ceil((double) page.total / perPage) : null,
+                Cursor.encode(page.next),
+                Cursor.encode(page.prev)
+            );
+        }
+    }
+
+    // результат обработки одного элемента пакетного запроса
+    @JsonInclude(Include.NON_NULL)
+    public final class BatchItem {
+        public final int     code; // код результата
+        public final Integer id;   // идентификатор созданной записи
+        public final String  info; // дополнительная информация
+
+        // конструктор #1
+        public BatchItem(
+            final Code    code,
+            final Integer id,
+            final String  info
+        ) {
+            this.code = code.getValue();
+            this.id   = id;
+            this.info = info;
         }
+
+        // конструктор #2 -- успешно созданная запись
+        public BatchItem(final int id) {
+            this(Code.OK, id, null);
+        }
+
+        // конструктор #3 -- отклоненный элемент
+        public BatchItem(final String info) {
+            this(Code.BAD_REQUEST, null, info);
+        }
+    }
+
+    // потоковое чтение элементов пакетного запроса (JSON-массив либо NDJSON), некорректные элементы заменяются на null
+    protected static <T> List<T> readBatch(final Context ctx, final Class<T> type) throws IOException {
+        final List<T> items = new ArrayList<>();
+
+        try (MappingIterator<JsonNode> iterator = App.codec().reader(JsonNode.class).readValues(ctx.body().stream())) {
+            while (iterator.hasNextValue()) {
+                if (items.size() == CommonController.BATCH_LIMIT) {
+                    throw new IOException();
+                }
+
+                final JsonNode node = iterator.nextValue();
+
+                T item;
+                try {
+                    item = App.codec().mapper().treeToValue(node, type);
+                } catch (IOException | IllegalArgumentException exc) {
+                    item = null;
+                }
+                items.add(item);
+            }
+        }
+
+        return items;
+    }
+
+    // потоковая выгрузка записей в формате NDJSON, ответ начинается только с первой записью;
+    // ошибка после начала ответа передается последней строкой {"code":500,"info":...}
+    protected final <T> Object ndjson(
+        final Context     ctx,
+        final Class<T>    type,
+        final Exporter<T> exporter,
+        final String      info
+    ) {
+        final ObjectWriter   writer = App.codec().writer(type);
+        final OutputStream[] out    = new OutputStream[1];
+
+        try {
+            exporter.export(item -> {
+                if (out[0] == null) {
+                    Compression.prepare(ctx);
+                    out[0] = new BufferedOutputStream(
+                        Compression.stream(ctx, ctx.setResponseType(CommonController.NDJSON).responseStream()),
+                        CommonController.EXPORT_BUFFER_SIZE
+                    );
+                }
+                out[0].write(writer.writeValueAsBytes(item));
+                out[0].write('\n');
+            });
+
+            // пустая выгрузка
+            if (out[0] == null) {
+                out[0] = ctx.setResponseType(CommonController.NDJSON).responseStream();
+            }
+            out[0].close();
+        } catch (Exception exc) {
+            // ответ еще не начат -- можно сообщить об ошибке
+            if (out[0] == null) {
+                return error(Code.INTERNAL_SERVER_ERROR, info);
+            }
+
+            // ответ уже начат -- код ответа изменить нельзя, поэтому выгрузка завершается строкой с ошибкой
+            // вместо записи: без нее оборванная выгрузка неотличима от полной
+            try {
+                out[0].write(App.codec().writer(Result.class).writeValueAsBytes(
+                    new Result(Code.INTERNAL_SERVER_ERROR, null, info)
+                ));
+                out[0].write('\n');
+                out[0].close();
+            } catch (IOException ignored) {}
+        }
+
+        return ctx;
+    }
+
+    // декоратор чтения своих записей при работе с репликами: запросы на изменение и запросы клиента,
+    // недавно выполнявшего изменения, читают с основного сервера
+    public static Route.Decorator readYourWrites() {
+        return next -> ctx -> {
+            if (!ReadRouting.enabled()) {
+                return next.apply(ctx);
+            }
+
+            final boolean write = !ctx.getMethod().equals(Router.GET) && !ctx.getMethod().equals(Router.HEAD);
+
+            boolean pinned = write;
+            if (!pinned) {
+                try {
+                    pinned = ctx.cookie(CommonController.COOKIE_PRIMARY_UNTIL).longValue(0) > System.currentTimeMillis();
+                } catch (Exception exc) {}
+            }
+
+            // после изменения клиент читает с основного сервера, пока реплики могут отставать
+            if (write) {
+                final long lag = ReadRouting.lag();
+                ctx.setResponseCookie(
+                    new Cookie(CommonController.COOKIE_PRIMARY_UNTIL, String.valueOf(System.currentTimeMillis() + lag))
+                        .setPath("/")
+                        .setHttpOnly(true)
+                        .setMaxAge((lag + 999) / 1000)
+                );
+            }
+
+            final boolean prev = ReadRouting.pin(pinned);
+            try {
+                return next.apply(ctx);
+            } finally {
+                ReadRouting.pin(prev);
+            }
+        };
+    }
+
+    // условный запрос: актуальна ли версия клиента по метке версии
+    protected static boolean notModified(final Context ctx, final Versions.Tag tag) {
+        // If-None-Match имеет приоритет над If-Modified-Since
+        final String match = ctx.header("If-None-Match").valueOrNull();
+        if (match != null) {
+            // сжатое представление имеет собственный ETag той же версии
+            final String variant = Compression.variant(tag.etag);
+            for (final String candidate : match.split(",")) {
+                final String value = candidate.trim();
+                if (value.equals("*") || value.equals(tag.etag) || value.equals("W/" + tag.etag) ||
+                    value.equals(variant) || value.equals("W/" + variant)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        final String since = ctx.header("If-Modified-Since").valueOrNull();
+        if (since != null) {
+            try {
+                return ZonedDateTime.parse(since, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli()
+                    >= tag.lastModified / 1000 * 1000;
+            } catch (DateTimeParseException exc) {}
+        }
+
+        return false;
+    }
+
+    // валидаторы успешного ответа (ETag и Last-Modified по метке версии); ответы с ошибкой их не получают,
+    // иначе клиент закэширует ошибку и будет получать на нее 304
+    protected static <T> T validated(final Context ctx, final Versions.Tag tag, final T response) {
+        ctx.setResponseHeader("ETag",          tag.etag);
+        ctx.setResponseHeader("Last-Modified", CommonController.HTTP_DATE.format(Instant.ofEpochMilli(tag.lastModified)));
+        ctx.setResponseHeader("Cache-Control", "no-cache");
+
+        return response;
     }
 }
@@ -1,16 +1,30 @@
 package tv.lid.cinema.api4.controllers;
 
-import java.util.List;
-
 import io.jooby.Context;
 import io.jooby.Route;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import tv.lid.cinema.api4.codecs.EncodedBody;
+import tv.lid.cinema.api4.models.AsyncRepository;
+import tv.lid.cinema.api4.models.Cursor;
 import tv.lid.cinema.api4.models.MovieModel;
+import tv.lid.cinema.api4.models.Page;
+import tv.lid.cinema.api4.models.PageCache;
+import tv.lid.cinema.api4.models.ScheduleModel;
+import tv.lid.cinema.api4.models.Versions;
 
 // класс контроллера управления фильмами
 public final class MovieController extends CommonController {
     private static final int MOVIES_PER_PAGE = 10; // количество записей на страницу
 
+    private static final int SEARCH_LIMIT     = 10,  // количество результатов поиска по умолчанию
+                             SEARCH_LIMIT_MAX = 100; // максимальное количество результатов поиска
+
     // список фильмов
     public final Route.Handler list;
 
@@ -23,6 +37,15 @@ public final class MovieController extends CommonController {
     // изменить фильм
     public final Route.Handler modify;
 
+    // выгрузить все фильмов
+    public final Route.Handler export;
+
+    // найти фильмы по названию
+    public final Route.Handler search;
+
+    // создать несколько фильмов за один запрос
+    public final Route.Handler batch;
+
     // удалить фильм
     public final Route.Handler kill;
 
@@ -30,6 +53,12 @@ public final class MovieController extends CommonController {
     public MovieController() {
         // запрос списка фильмов
         this.list = (Context ctx) -> {
+            // клиент уже имеет актуальную версию списка -- отвечаем 304, не обращаясь к БД
+            final Versions.Tag tag = MovieModel.listTag();
+            if (notModified(ctx, tag)) {
+                return unchanged(ctx, tag);
+            }
+
             // считываем номер страницы во входных параметрах
             int page = 1;
 
@@ -37,29 +66,42 @@ public final class MovieController extends CommonController {
                 page = Integer.parseInt(ctx.path("page").value());
             } catch (Exception exc) {}
 
-            // запрашиваем количество записей и вычисляем число страниц
-            int total, pages;
-            try {
-                total = MovieModel.count();
-            } catch (Exception exc) {
-                return error(Code.INTERNAL_SERVER_ERROR, "Не удалось получить количество записей в таблице фильмов!");
-            }
-            pages = (int) Math.ceil(total / MovieController.MOVIES_PER_PAGE);
+            // считываем курсор во входных параметрах
+            final String token = ctx.query("cursor").valueOrNull();
 
-            // запрашиваем список записей в соответствии с номером страницы
-            List<MovieModel> list;
-            try {
-                list = MovieModel.list(page, MovieController.MOVIES_PER_PAGE);
-            } catch (Exception exc) {
-                return error(Code.INTERNAL_SERVER_ERROR, "Не удалось получить список фильмов по заданным параметрам!");
+            // считываем признак необходимости подсчета общего количества записей
+            final boolean withTotal = ctx.query("withTotal").booleanValue(true);
+
+            // ключ кэша страниц (страницы по курсору не кэшируются)
+            final String key = token == null ? "movies/" + page + "/" + withTotal : null;
+
+            // запрашиваем страницу методом поиска, если задан курсор, иначе по номеру страницы
+            final CompletableFuture<Page<MovieModel>> chunk;
+
+            if (token != null) {
+                final Cursor cursor = Cursor.decode(token);
+                if (cursor == null) {
+                    return completed(error(Code.BAD_REQUEST, "Задан некорректный курсор списка фильмов!"));
+                }
+
+                chunk = MovieModel.listAsync(cursor, MovieController.MOVIES_PER_PAGE, withTotal);
+            } else {
+                // готовая страница из кэша -- без обращения к БД и создания моделей
+                final EncodedBody cached = PageCache.get(key, tag);
+                if (cached != null) {
+                    return CompletableFuture.completedFuture(validated(ctx, tag, cached));
+                }
+
+                chunk = MovieModel.listAsync(page, MovieController.MOVIES_PER_PAGE, withTotal);
             }
 
-            // возвращаем результат в обёртке списка
-            return ok(new ListWrapper(
-                list,
-                total,
-                pages
-            ));
+            // возвращаем результат в обёртке списка, не блокируя поток обработчика
+            return chunk
+                .<Object>thenApply(result -> validated(ctx, tag, rendered(key, tag, ok(new ListWrapper(result, MovieController.MOVIES_PER_PAGE)))))
+                .exceptionally(exc -> AsyncRepository.cause(exc) instanceof IllegalArgumentException
+                    ? error(Code.BAD_REQUEST, "Задан некорректный курсор списка фильмов!")
+                    : failure(exc, "Не удалось получить список фильмов по заданным параметрам!")
+                );
         };
 
         // создать новый фильм
@@ -74,35 +116,39 @@ public final class MovieController extends CommonController {
 
             // сохраняем фильм в БД
             try {
-                movie.save();
+                movie = movie.save();
             } catch (Exception exc) {
                 return error(Code.INTERNAL_SERVER_ERROR, "Не удалось сохранить информацию о фильме в базе данных!");
             }
 
-            // сообщаем об успехе
-            return ok();
+            // возвращаем созданный фильм вместе с идентификатором
+            return ok(movie);
         };
 
         // найти фильм по заданному идентификатору
         this.find = (Context ctx) -> {
-            MovieModel movie;
-            int        id;
+            int id;
 
             // считываем идентификатор фильма во входных параметрах
             try {
                 id = Integer.parseInt(ctx.path("id").value());
-
-                // ищем фильм по заданному идентификатору
-                movie = MovieModel.find(id);
-                if (movie == null) {
-                    throw new Exception();
-                }
             } catch (Exception exc) {
-                return error(Code.BAD_REQUEST, "Задан некорректный идентификатор фильма!");
+                return completed(error(Code.BAD_REQUEST, "Задан некорректный идентификатор фильма!"));
             }
 
-            // возвращаем фильм
-            return ok(movie);
+            // клиент уже имеет актуальную версию фильма -- отвечаем 304, не обращаясь к БД
+            final Versions.Tag tag = MovieModel.tag(id);
+            if (notModified(ctx, tag)) {
+                return unchanged(ctx, tag);
+            }
+
+            // ищем фильм по заданному идентификатору и возвращаем его
+            return MovieModel.findAsync(id)
+                .thenApply(movie -> movie != null
+                    ? validated(ctx, tag, ok(movie))
+                    : error(Code.BAD_REQUEST, "Задан некорректный идентификатор фильма!")
+                )
+                .exceptionally(exc -> failure(exc, "Не удалось получить информацию о фильме из базы данных!"));
         };
 
         // изменить ранее созданный фильм
@@ -110,19 +156,100 @@ public final class MovieController extends CommonController {
             MovieModel movie = ctx.body(MovieModel.class);
 
             // проверка корректности полученных данных
-            if (movie == null || !MovieModel.exists(movie.id)) {
+            if (movie == null || movie.id == 0) {
                 return error(Code.BAD_REQUEST, "Заданы некорректные входные данные запроса!");
             }
 
             // сохраняем фильм в БД
             try {
-                movie.save();
+                movie = movie.save();
+            } catch (ScheduleModel.OverlapException exc) {
+                return error(Code.CONFLICT, "С новой длительностью сеансы фильма пересекутся с другими сеансами в тех же залах!");
             } catch (Exception exc) {
                 return error(Code.INTERNAL_SERVER_ERROR, "Не удалось сохранить информацию о фильме в базе данных!");
             }
 
-            // сообщаем об успехе
-            return ok();
+            // фильм не найден
+            if (movie == null) {
+                return error(Code.BAD_REQUEST, "Заданы некорректные входные данные запроса!");
+            }
+
+            // возвращаем измененный фильм
+            return ok(movie);
+        };
+
+        // найти фильмы по подстроке названия в индексе в памяти, без обращения к БД
+        this.search = (Context ctx) -> {
+            // считываем поисковую строку во входных параметрах
+            final String query = ctx.query("q").valueOrNull();
+            if (query == null || query.trim().isEmpty()) {
+                return error(Code.BAD_REQUEST, "Задан некорректный поисковый запрос!");
+            }
+
+            // считываем количество результатов во входных параметрах
+            int limit;
+
+            try {
+                limit = ctx.query("limit").intValue(MovieController.SEARCH_LIMIT);
+            } catch (Exception exc) {
+                return error(Code.BAD_REQUEST, "Задано некорректное количество результатов поиска!");
+            }
+
+            if (limit < 1 || limit > MovieController.SEARCH_LIMIT_MAX) {
+                return error(Code.BAD_REQUEST, "Задано некорректное количество результатов поиска!");
+            }
+
+            // возвращаем найденные фильмы в порядке соответствия запросу
+            return ok(MovieModel.search(query, limit));
+        };
+
+        // выгрузить все фильмов потоком в формате NDJSON
+        this.export = (Context ctx) -> ndjson(
+            ctx,
+            MovieModel.class,
+            MovieModel::export,
+            "Не удалось выгрузить информацию о фильмах из базы данных!"
+        );
+
+        // создать несколько фильмов за один запрос
+        this.batch = (Context ctx) -> {
+            // читаем элементы пакета
+            final List<MovieModel> items;
+            try {
+                items = readBatch(ctx, MovieModel.class);
+            } catch (IOException exc) {
+                return error(Code.BAD_REQUEST, "Заданы некорректные входные данные запроса!");
+            }
+
+            // отбираем корректные элементы, сохраняя их позиции в пакете
+            final BatchItem[]      results   = new BatchItem[items.size()];
+            final List<MovieModel> valid     = new ArrayList<>();
+            final List<Integer>    positions = new ArrayList<>();
+
+            for (int i = 0; i < items.size(); i++) {
+                final MovieModel movie = items.get(i);
+                if (movie == null || movie.id != 0) {
+                    results[i] = new BatchItem("Заданы некорректные данные фильма!");
+                } else {
+                    valid.add(movie);
+                    positions.add(i);
+                }
+            }
+
+            // сохраняем корректные элементы в одной транзакции
+            final List<MovieModel> saved;
+            try {
+                saved = MovieModel.saveAll(valid);
+            } catch (Exception exc) {
+                return error(Code.INTERNAL_SERVER_ERROR, "Не удалось сохранить информацию о фильмах в базе данных!");
+            }
+
+            for (int i = 0; i < saved.size(); i++) {
+                results[positions.get(i)] = new BatchItem(saved.get(i).id);
+            }
+
+            // возвращаем результаты по каждому элементу пакета
+            return ok(Arrays.asList(results));
         };
 
         // удалить фильм по заданному идентификатору
@@ -132,22 +259,22 @@ public final class MovieController extends CommonController {
             // считываем идентификатор фильма во входных параметрах
             try {
                 id = Integer.parseInt(ctx.path("id").value());
-
-                // проверяем существование фильма по заданному идентификатору
-                if (!MovieModel.exists(id)) {
-                    throw new Exception();
-                }
             } catch (Exception exc) {
                 return error(Code.BAD_REQUEST, "Задан некорректный идентификатор фильма!");
             }
 
-            // удаляем фильм из БД
+            // удаляем фильм из БД, отсутствие записи определяется по количеству удаленных строк
+            boolean killed;
             try {
-                MovieModel.kill(id);
+                killed = MovieModel.kill(id);
             } catch (Exception exc) {
                 return error(Code.INTERNAL_SERVER_ERROR, "Не удалось удалить информацию о фильме из базы данных!");
             }
 
+            if (!killed) {
+                return error(Code.BAD_REQUEST, "Задан некорректный идентификатор фильма!");
+            }
+
             // сообщаем об успехе
             return ok();
         };
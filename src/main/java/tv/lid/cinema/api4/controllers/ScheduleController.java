@@ -1,12 +1,25 @@
 package tv.lid.cinema.api4.controllers;
 
-import java.util.List;
-
 import io.jooby.Context;
 import io.jooby.Route;
 
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import tv.lid.cinema.api4.codecs.EncodedBody;
+import tv.lid.cinema.api4.models.AsyncRepository;
+import tv.lid.cinema.api4.models.Cursor;
 import tv.lid.cinema.api4.models.MovieModel;
+import tv.lid.cinema.api4.models.Page;
+import tv.lid.cinema.api4.models.PageCache;
 import tv.lid.cinema.api4.models.ScheduleModel;
+import tv.lid.cinema.api4.models.Versions;
 
 // класс контроллера управления сеансами
 public final class ScheduleController extends CommonController {
@@ -15,6 +28,9 @@ public final class ScheduleController extends CommonController {
     // список сеансов
     public final Route.Handler list;
 
+    // сеансы всех фильмов в интервале времени
+    public final Route.Handler range;
+
     // новый сеанс
     public final Route.Handler create;
 
@@ -24,6 +40,12 @@ public final class ScheduleController extends CommonController {
     // изменить сеанс
     public final Route.Handler modify;
 
+    // выгрузить все сеансов
+    public final Route.Handler export;
+
+    // создать несколько сеансов за один запрос
+    public final Route.Handler batch;
+
     // удалить сеанс
     public final Route.Handler kill;
 
@@ -36,7 +58,13 @@ public final class ScheduleController extends CommonController {
             try {
                 movieId = Integer.parseInt(ctx.path("movieId").value());
             } catch (Exception exc) {
-                return error(Code.BAD_REQUEST, "Задан некорректный идентификатор фильма!");
+                return completed(error(Code.BAD_REQUEST, "Задан некорректный идентификатор фильма!"));
+            }
+
+            // клиент уже имеет актуальную версию списка -- отвечаем 304, не обращаясь к БД
+            final Versions.Tag tag = ScheduleModel.listTag(movieId);
+            if (notModified(ctx, tag)) {
+                return unchanged(ctx, tag);
             }
 
             // считываем номер страницы во входных параметрах
@@ -46,29 +74,81 @@ public final class ScheduleController extends CommonController {
                 page = Integer.parseInt(ctx.path("page").value());
             } catch (Exception exc) {}
 
-            // запрашиваем количество записей и вычисляем число страниц
-            int total, pages;
-            try {
-                total = ScheduleModel.count(movieId);
-            } catch (Exception exc) {
-                return error(Code.INTERNAL_SERVER_ERROR, "Не удалось получить количество записей в таблице сеансов!");
+            // считываем курсор во входных параметрах
+            final String token = ctx.query("cursor").valueOrNull();
+
+            // считываем признак необходимости подсчета общего количества записей
+            final boolean withTotal = ctx.query("withTotal").booleanValue(true);
+
+            // ключ кэша страниц (страницы по курсору не кэшируются)
+            final String key = token == null ? "schedules/" + movieId + "/" + page + "/" + withTotal : null;
+
+            // запрашиваем страницу методом поиска, если задан курсор, иначе по номеру страницы
+            final CompletableFuture<Page<ScheduleModel>> chunk;
+
+            if (token != null) {
+                final Cursor cursor = Cursor.decode(token);
+                if (cursor == null) {
+                    return completed(error(Code.BAD_REQUEST, "Задан некорректный курсор списка сеансов!"));
+                }
+
+                chunk = ScheduleModel.listAsync(movieId, cursor, ScheduleController.SCHEDULES_PER_PAGE, withTotal);
+            } else {
+                // готовая страница из кэша -- без обращения к БД и создания моделей
+                final EncodedBody cached = PageCache.get(key, tag);
+                if (cached != null) {
+                    return CompletableFuture.completedFuture(validated(ctx, tag, cached));
+                }
+
+                chunk = ScheduleModel.listAsync(movieId, page, ScheduleController.SCHEDULES_PER_PAGE, withTotal);
+            }
+
+            // возвращаем результат в обёртке списка, не блокируя поток обработчика
+            return chunk
+                .<Object>thenApply(result -> validated(ctx, tag, rendered(key, tag, ok(new ListWrapper(result, ScheduleController.SCHEDULES_PER_PAGE)))))
+                .exceptionally(exc -> AsyncRepository.cause(exc) instanceof IllegalArgumentException
+                    ? error(Code.BAD_REQUEST, "Задан некорректный курсор списка сеансов!")
+                    : failure(exc, "Не удалось получить список сеансов по заданным параметрам!")
+                );
+        };
+
+        // запрос сеансов всех фильмов с началом в заданном интервале времени в порядке начала
+        this.range = (Context ctx) -> {
+            // считываем границы интервала во входных параметрах
+            final LocalDateTime from = ScheduleModel.parse(ctx.query("from").valueOrNull()),
+                                to   = ScheduleModel.parse(ctx.query("to").valueOrNull());
+            if (from == null || to == null || !from.isBefore(to)) {
+                return completed(error(Code.BAD_REQUEST, "Задан некорректный интервал времени!"));
             }
-            pages = (int) Math.ceil(total / ScheduleController.SCHEDULES_PER_PAGE);
 
-            // запрашиваем список записей в соответствии с номером страницы
-            List<ScheduleModel> list;
+            // считываем номер зала во входных параметрах (0 -- все залы)
+            final int auditorium;
             try {
-                list = ScheduleModel.list(movieId, page, ScheduleController.SCHEDULES_PER_PAGE);
+                auditorium = ctx.query("auditorium").intValue(0);
             } catch (Exception exc) {
-                return error(Code.INTERNAL_SERVER_ERROR, "Не удалось получить список сеансов по заданным параметрам!");
+                return completed(error(Code.BAD_REQUEST, "Задан некорректный номер зала!"));
             }
+            if (auditorium < 0 || auditorium > Byte.MAX_VALUE) {
+                return completed(error(Code.BAD_REQUEST, "Задан некорректный номер зала!"));
+            }
+
+            // считываем курсор во входных параметрах
+            final String token  = ctx.query("cursor").valueOrNull();
+            final Cursor cursor = token != null ? Cursor.decode(token) : null;
+            if (token != null && cursor == null) {
+                return completed(error(Code.BAD_REQUEST, "Задан некорректный курсор списка сеансов!"));
+            }
+
+            // считываем признак необходимости подсчета общего количества записей
+            final boolean withTotal = ctx.query("withTotal").booleanValue(true);
 
-            // возвращаем результат в обёртке списка
-            return ok(new ListWrapper(
-                list,
-                total,
-                pages
-            ));
+            // возвращаем результат в обёртке списка, не блокируя поток обработчика
+            return ScheduleModel.rangeAsync(from, to, (byte) auditorium, cursor, ScheduleController.SCHEDULES_PER_PAGE, withTotal)
+                .<Object>thenApply(result -> ok(new ListWrapper(result, ScheduleController.SCHEDULES_PER_PAGE)))
+                .exceptionally(exc -> AsyncRepository.cause(exc) instanceof IllegalArgumentException
+                    ? error(Code.BAD_REQUEST, "Задан некорректный курсор списка сеансов!")
+                    : failure(exc, "Не удалось получить список сеансов по заданным параметрам!")
+                );
         };
 
         // создать новый сеанс
@@ -77,41 +157,46 @@ public final class ScheduleController extends CommonController {
             ScheduleModel schedule = ctx.body(ScheduleModel.class);
 
             // проверка корректности полученных данных
-            if (schedule == null || !MovieModel.exists(schedule.movieId)) {
+            if (schedule == null || schedule.id != 0 || schedule.startsAt() == null) {
                 return error(Code.BAD_REQUEST, "Заданы некорректные входные данные запроса!");
             }
 
-            // сохраняем фильм в БД
+            // сохраняем сеанс в БД
             try {
-                schedule.save();
+                schedule = schedule.save();
+            } catch (ScheduleModel.OverlapException exc) {
+                return error(Code.CONFLICT, "Сеанс пересекается с другим сеансом в том же зале!");
             } catch (Exception exc) {
                 return error(Code.INTERNAL_SERVER_ERROR, "Не удалось сохранить информацию о сеансе в базе данных!");
             }
 
-            // сообщаем об успехе
-            return ok();
+            // фильм сеанса не найден
+            if (schedule == null) {
+                return error(Code.BAD_REQUEST, "Заданы некорректные входные данные запроса!");
+            }
+
+            // возвращаем созданный сеанс вместе с идентификатором
+            return ok(schedule);
         };
 
         // найти сеанс по заданному идентификатору
         this.find = (Context ctx) -> {
-            ScheduleModel schedule;
-            int           id;
+            int id;
 
             // считываем идентификатор сеанса во входных параметрах
             try {
                 id = Integer.parseInt(ctx.path("id").value());
-
-                // ищем сеанс по заданному идентификатору
-                schedule = ScheduleModel.find(id);
-                if (schedule == null) {
-                    throw new Exception();
-                }
             } catch (Exception exc) {
-                return error(Code.BAD_REQUEST, "Задан некорректный идентификатор сеанса!");
+                return completed(error(Code.BAD_REQUEST, "Задан некорректный идентификатор сеанса!"));
             }
 
-            // возвращаем сеанс
-            return ok(schedule);
+            // ищем сеанс по заданному идентификатору и возвращаем его
+            return ScheduleModel.findAsync(id)
+                .thenApply(schedule -> schedule != null
+                    ? ok(schedule)
+                    : error(Code.BAD_REQUEST, "Задан некорректный идентификатор сеанса!")
+                )
+                .exceptionally(exc -> failure(exc, "Не удалось получить информацию о сеансе из базы данных!"));
         };
 
         // изменить ранее созданный сеанс
@@ -119,19 +204,105 @@ public final class ScheduleController extends CommonController {
             ScheduleModel schedule = ctx.body(ScheduleModel.class);
 
             // проверка корректности полученных данных
-            if (schedule == null || !ScheduleModel.exists(schedule.id) || !MovieModel.exists(schedule.movieId)) {
+            if (schedule == null || schedule.id == 0 || schedule.startsAt() == null) {
                 return error(Code.BAD_REQUEST, "Заданы некорректные входные данные запроса!");
             }
 
             // сохраняем сеанс в БД
             try {
-                schedule.save();
+                schedule = schedule.save();
+            } catch (ScheduleModel.OverlapException exc) {
+                return error(Code.CONFLICT, "Сеанс пересекается с другим сеансом в том же зале!");
+            } catch (ScheduleModel.CrossShardException exc) {
+                return error(Code.BAD_REQUEST, "Перенос сеанса на фильм другого шарда не поддерживается!");
             } catch (Exception exc) {
                 return error(Code.INTERNAL_SERVER_ERROR, "Не удалось сохранить информацию о сеансе в базе данных!");
             }
 
-            // сообщаем об успехе
-            return ok();
+            // сеанс либо его фильм не найден
+            if (schedule == null) {
+                return error(Code.BAD_REQUEST, "Заданы некорректные входные данные запроса!");
+            }
+
+            // возвращаем измененный сеанс
+            return ok(schedule);
+        };
+
+        // выгрузить все сеансов потоком в формате NDJSON
+        this.export = (Context ctx) -> ndjson(
+            ctx,
+            ScheduleModel.class,
+            ScheduleModel::export,
+            "Не удалось выгрузить информацию о сеансах из базы данных!"
+        );
+
+        // создать несколько сеансов за один запрос
+        this.batch = (Context ctx) -> {
+            // читаем элементы пакета
+            final List<ScheduleModel> items;
+            try {
+                items = readBatch(ctx, ScheduleModel.class);
+            } catch (IOException exc) {
+                return error(Code.BAD_REQUEST, "Заданы некорректные входные данные запроса!");
+            }
+
+            // проверяем существование всех упомянутых фильмов одним запросом
+            final Set<Integer> movies;
+            try {
+                final Set<Integer> ids = new HashSet<>();
+                for (final ScheduleModel schedule : items) {
+                    if (schedule != null) {
+                        ids.add(schedule.movieId);
+                    }
+                }
+                movies = MovieModel.existing(ids);
+            } catch (Exception exc) {
+                return error(Code.INTERNAL_SERVER_ERROR, "Не удалось проверить фильмы сеансов в базе данных!");
+            }
+
+            // отбираем корректные элементы, сохраняя их позиции в пакете
+            final BatchItem[]         results   = new BatchItem[items.size()];
+            final List<ScheduleModel> valid     = new ArrayList<>();
+            final List<Integer>       positions = new ArrayList<>();
+
+            for (int i = 0; i < items.size(); i++) {
+                final ScheduleModel schedule = items.get(i);
+                if (
+                    schedule == null ||
+                    schedule.id != 0 ||
+                    schedule.startsAt() == null ||
+                    !movies.contains(schedule.movieId)
+                ) {
+                    results[i] = new BatchItem("Заданы некорректные данные сеанса!");
+                } else {
+                    valid.add(schedule);
+                    positions.add(i);
+                }
+            }
+
+            // сохраняем корректные элементы без пересечений в одной транзакции
+            final List<ScheduleModel.Outcome> saved;
+            try {
+                saved = ScheduleModel.saveAll(valid);
+            } catch (Exception exc) {
+                return error(Code.INTERNAL_SERVER_ERROR, "Не удалось сохранить информацию о сеансах в базе данных!");
+            }
+
+            // сеансы, пересекающиеся с другими сеансами в том же зале, и сеансы фильмов, удаленных после проверки,
+            // не сохранены
+            for (int i = 0; i < saved.size(); i++) {
+                final ScheduleModel.Outcome outcome = saved.get(i);
+                if (outcome.saved != null) {
+                    results[positions.get(i)] = new BatchItem(outcome.saved.id);
+                } else if (outcome.rejection == ScheduleModel.Outcome.Rejection.OVERLAP) {
+                    results[positions.get(i)] = new BatchItem(Code.CONFLICT, null, "Сеанс пересекается с другим сеансом в том же зале!");
+                } else {
+                    results[positions.get(i)] = new BatchItem("Фильм сеанса не найден!");
+                }
+            }
+
+            // возвращаем результаты по каждому элементу пакета
+            return ok(Arrays.asList(results));
         };
 
         // удалить сеанс по заданному идентификатору
@@ -141,22 +312,22 @@ public final class ScheduleController extends CommonController {
             // считываем идентификатор сеанса во входных параметрах
             try {
                 id = Integer.parseInt(ctx.path("id").value());
-
-                // проверяем существование сеанса по заданному идентификатору
-                if (!ScheduleModel.exists(id)) {
-                    throw new Exception();
-                }
             } catch (Exception exc) {
                 return error(Code.BAD_REQUEST, "Задан некорректный идентификатор сеанса!");
             }
 
-            // удаляем сеанс из БД
+            // удаляем сеанс из БД, отсутствие записи определяется по количеству удаленных строк
+            boolean killed;
             try {
-                ScheduleModel.kill(id);
+                killed = ScheduleModel.kill(id);
             } catch (Exception exc) {
                 return error(Code.INTERNAL_SERVER_ERROR, "Не удалось удалить информацию о сеансе из базы данных!");
             }
 
+            if (!killed) {
+                return error(Code.BAD_REQUEST, "Задан некорректный идентификатор сеанса!");
+            }
+
             // сообщаем об успехе
             return ok();
         };
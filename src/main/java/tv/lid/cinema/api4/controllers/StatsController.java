@@ -0,0 +1,30 @@
+package tv.lid.cinema.api4.controllers;
+
+import io.jooby.Context;
+import io.jooby.MediaType;
+import io.jooby.Route;
+
+import tv.lid.cinema.api4.metrics.Metrics;
+import tv.lid.cinema.api4.models.EntityCache;
+
+// класс контроллера статистики работы приложения
+public final class StatsController extends CommonController {
+    // статистика кэшей записей
+    public final Route.Handler cache;
+
+    // метрики в текстовом формате Prometheus
+    public final Route.Handler metrics;
+
+    // конструктор
+    public StatsController() {
+        // запрос статистики кэшей записей
+        this.cache = (Context ctx) -> {
+            return ok(EntityCache.stats());
+        };
+
+        // запрос метрик (задержки маршрутов и запросов к БД, пул соединений, кэши)
+        this.metrics = (Context ctx) -> {
+            return ctx.setResponseType(MediaType.text).send(Metrics.scrape());
+        };
+    }
+}
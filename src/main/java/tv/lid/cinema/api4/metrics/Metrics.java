@@ -0,0 +1,257 @@
+package tv.lid.cinema.api4.metrics;
+
+import io.jooby.Route;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import org.HdrHistogram.Histogram;
+
+import org.jooq.ExecuteListenerProvider;
+import org.jooq.ExecuteType;
+import org.jooq.impl.DefaultExecuteListenerProvider;
+
+import tv.lid.cinema.api4.models.EntityCache;
+
+// реестр метрик приложения и их вывод в текстовом формате Prometheus
+public final class Metrics {
+    // выводимые квантили
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    // максимальное количество запоминаемых текстов SQL-запросов
+    private static final int SQL_LIMIT = 1024;
+
+    // имя таблицы в тексте SQL-запроса
+    private static final Pattern TABLE = Pattern.compile(
+        "(?i)\\b(?:from|into|update|table(?:\\s+if\\s+(?:not\\s+)?exists)?|on)\\s+[\"`]?([A-Za-z0-9_.]+)"
+    );
+
+    // таймеры маршрутов по меткам
+    private static final ConcurrentMap<String, Timer> routes = new ConcurrentHashMap<>();
+
+    // таймеры маршрутов по самим маршрутам (поиск без построения строк)
+    private static final ConcurrentMap<Route, Timer> routesByRoute = new ConcurrentHashMap<>();
+
+    // таймеры запросов к БД по меткам (тип запроса и таблица)
+    private static final ConcurrentMap<String, Timer> queries = new ConcurrentHashMap<>();
+
+    // таймеры запросов к БД по тексту SQL: вытесняются редкие тексты, частые разбираются один раз
+    private static final Cache<String, Timer> queriesBySql = Caffeine.newBuilder()
+        .maximumSize(Metrics.SQL_LIMIT)
+        .build();
+
+    // показатели, снимаемые в момент запроса метрик
+    private static final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    // слушатель запросов jOOQ
+    private static final ExecuteListenerProvider listener = new DefaultExecuteListenerProvider(new QueryListener());
+
+    // показатель
+    private static final class Gauge {
+        final String       name;   // имя метрики
+        final String       labels; // метки серии
+        final String       help;   // описание
+        final LongSupplier value;  // источник значения
+
+        Gauge(final String name, final String labels, final String help, final LongSupplier value) {
+            this.name   = name;
+            this.labels = labels;
+            this.help   = help;
+            this.value  = value;
+        }
+    }
+
+    // конструктор
+    private Metrics() {}
+
+    // декоратор маршрутов, замеряющий время работы обработчика; у асинхронного обработчика
+    // время замеряется до завершения возвращенного результата, а не до его создания
+    public static Route.Decorator decorator() {
+        return next -> ctx -> {
+            final long  started = System.nanoTime();
+            final Timer timer   = Metrics.route(ctx.getRoute());
+
+            final Object result;
+            try {
+                result = next.apply(ctx);
+            } catch (Throwable exc) {
+                timer.record(System.nanoTime() - started);
+                throw exc;
+            }
+
+            if (result instanceof CompletionStage) {
+                ((CompletionStage<?>) result).whenComplete((value, exc) -> timer.record(System.nanoTime() - started));
+            } else {
+                timer.record(System.nanoTime() - started);
+            }
+            return result;
+        };
+    }
+
+    // слушатель запросов для конфигурации jOOQ
+    public static ExecuteListenerProvider listener() {
+        return Metrics.listener;
+    }
+
+    // регистрация показателя
+    public static void gauge(final String name, final String labels, final String help, final LongSupplier value) {
+        Metrics.gauges.add(new Gauge(name, labels, help, value));
+    }
+
+    // удаление всех показателей с заданным именем
+    public static void unregister(final String name) {
+        Metrics.gauges.removeIf(gauge -> gauge.name.equals(name));
+    }
+
+    // удаление показателей с заданным именем, метки которых начинаются с заданного префикса
+    public static void unregister(final String name, final String labels) {
+        Metrics.gauges.removeIf(gauge -> gauge.name.equals(name) && gauge.labels.startsWith(labels));
+    }
+
+    // таймер маршрута
+    static Timer route(final Route route) {
+        Timer timer = Metrics.routesByRoute.get(route);
+        if (timer == null) {
+            final String labels = "route=\"" + route.getMethod() + " " + route.getPattern() + "\"";
+
+            timer = Metrics.routes.computeIfAbsent(labels, Timer::new);
+            Metrics.routesByRoute.putIfAbsent(route, timer);
+        }
+        return timer;
+    }
+
+    // таймер запроса к БД
+    static Timer query(final ExecuteType type, final String sql) {
+        if (sql == null) {
+            return Metrics.resolve(type, null);
+        }
+
+        // на горячем пути -- только поиск без захватывающей лямбды; при промахе таймер разбирается и кладется
+        // в кэш без блокировки: повторный разбор в гонке вернет тот же таймер из queries
+        Timer timer = Metrics.queriesBySql.getIfPresent(sql);
+        if (timer == null) {
+            timer = Metrics.resolve(type, sql);
+            Metrics.queriesBySql.put(sql, timer);
+        }
+        return timer;
+    }
+
+    // таймер запроса к БД по типу запроса и таблице из текста SQL
+    private static Timer resolve(final ExecuteType type, final String sql) {
+        String table = "unknown";
+        if (sql != null) {
+            final Matcher matcher = Metrics.TABLE.matcher(sql);
+            if (matcher.find()) {
+                table = matcher.group(1).toLowerCase(Locale.ROOT);
+            }
+        }
+
+        final String labels = "type=\"" + type.name().toLowerCase(Locale.ROOT) + "\",table=\"" + table + "\"";
+
+        return Metrics.queries.computeIfAbsent(labels, Timer::new);
+    }
+
+    // вывод всех метрик в текстовом формате Prometheus
+    public static String scrape() {
+        final StringBuilder out = new StringBuilder(4096);
+
+        Metrics.summary(
+            out,
+            "api4_http_request_duration_seconds",
+            "Time spent in route handlers.",
+            Metrics.routes
+        );
+        Metrics.summary(
+            out,
+            "api4_db_query_duration_seconds",
+            "Time spent executing database queries by query type and table.",
+            Metrics.queries
+        );
+
+        // показатели с одним именем выводятся одной группой, даже если регистрировались вперемешку
+        final Set<String> names = new LinkedHashSet<>();
+        for (final Gauge gauge : Metrics.gauges) {
+            names.add(gauge.name);
+        }
+        for (final String name : names) {
+            boolean first = true;
+            for (final Gauge gauge : Metrics.gauges) {
+                if (gauge.name.equals(name)) {
+                    if (first) {
+                        Metrics.header(out, gauge.name, gauge.help, "gauge");
+                        first = false;
+                    }
+                    Metrics.sample(out, gauge.name, gauge.labels, gauge.value.getAsLong());
+                }
+            }
+        }
+
+        final List<EntityCache.Stats> caches = EntityCache.stats();
+
+        Metrics.header(out, "api4_cache_size", "Entries in the entity and page caches.", "gauge");
+        for (final EntityCache.Stats stats : caches) {
+            Metrics.sample(out, "api4_cache_size", "cache=\"" + stats.name + "\"", stats.size);
+        }
+
+        Metrics.header(out, "api4_cache_hits_total", "Entity and page cache hits.", "counter");
+        for (final EntityCache.Stats stats : caches) {
+            Metrics.sample(out, "api4_cache_hits_total", "cache=\"" + stats.name + "\"", stats.hits);
+        }
+
+        Metrics.header(out, "api4_cache_misses_total", "Entity and page cache misses.", "counter");
+        for (final EntityCache.Stats stats : caches) {
+            Metrics.sample(out, "api4_cache_misses_total", "cache=\"" + stats.name + "\"", stats.misses);
+        }
+
+        Metrics.header(out, "api4_cache_evictions_total", "Entity and page cache evictions.", "counter");
+        for (final EntityCache.Stats stats : caches) {
+            Metrics.sample(out, "api4_cache_evictions_total", "cache=\"" + stats.name + "\"", stats.evictions);
+        }
+
+        return out.toString();
+    }
+
+    // вывод семейства таймеров как summary
+    private static void summary(
+        final StringBuilder                out,
+        final String                       name,
+        final String                       help,
+        final ConcurrentMap<String, Timer> timers
+    ) {
+        Metrics.header(out, name, help, "summary");
+
+        for (final Timer timer : timers.values()) {
+            final Histogram histogram = timer.snapshot();
+
+            for (final double quantile : Metrics.QUANTILES) {
+                out.append(name).append('{').append(timer.labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.getValueAtPercentile(quantile * 100.0) / 1e6).append('\n');
+            }
+            out.append(name).append("_sum{").append(timer.labels).append("} ").append(timer.sum() / 1e6).append('\n');
+            out.append(name).append("_count{").append(timer.labels).append("} ").append(histogram.getTotalCount()).append('\n');
+        }
+    }
+
+    // заголовок семейства метрик
+    private static void header(final StringBuilder out, final String name, final String help, final String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    // одно значение метрики
+    private static void sample(final StringBuilder out, final String name, final String labels, final long value) {
+        out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+}
@@ -0,0 +1,23 @@
+package tv.lid.cinema.api4.metrics;
+
+import org.jooq.ExecuteContext;
+import org.jooq.impl.DefaultExecuteListener;
+
+// слушатель jOOQ, замеряющий время выполнения запросов к БД
+final class QueryListener extends DefaultExecuteListener {
+    private static final long serialVersionUID = 1L;
+
+    // момент начала выполнения запроса в текущем потоке
+    private static final ThreadLocal<long[]> STARTED = ThreadLocal.withInitial(() -> new long[1]);
+
+    @Override
+    public void executeStart(final ExecuteContext ctx) {
+        QueryListener.STARTED.get()[0] = System.nanoTime();
+    }
+
+    @Override
+    public void executeEnd(final ExecuteContext ctx) {
+        final long elapsed = System.nanoTime() - QueryListener.STARTED.get()[0];
+        Metrics.query(ctx.type(), ctx.sql()).record(elapsed);
+    }
+}
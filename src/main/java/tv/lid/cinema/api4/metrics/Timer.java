@@ -0,0 +1,56 @@
+package tv.lid.cinema.api4.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+// таймер: гистограмма длительностей в микросекундах, запись без блокировок и выделения памяти
+public final class Timer {
+    // максимальная учитываемая длительность, мкс (большие значения округляются до неё)
+    private static final long HIGHEST = TimeUnit.MINUTES.toMicros(10);
+
+    // точность гистограммы, значащих цифр
+    private static final int DIGITS = 2;
+
+    // имя таймера (метки серии метрик)
+    public final String labels;
+
+    // текущий интервал записи
+    private final Recorder recorder = new Recorder(Timer.HIGHEST, Timer.DIGITS);
+
+    // накопленная гистограмма за всё время работы
+    private final Histogram total = new Histogram(Timer.HIGHEST, Timer.DIGITS);
+
+    // гистограмма интервала, переиспользуемая при снятии снимка
+    private Histogram interval = null;
+
+    // сумма длительностей, мкс
+    private final LongAdder sum = new LongAdder();
+
+    // конструктор
+    Timer(final String labels) {
+        this.labels = labels;
+    }
+
+    // запись длительности в наносекундах
+    public void record(final long nanos) {
+        final long micros = Math.min(Math.max(nanos / 1000, 0), Timer.HIGHEST);
+
+        this.recorder.recordValue(micros);
+        this.sum.add(micros);
+    }
+
+    // снимок накопленной гистограммы
+    synchronized Histogram snapshot() {
+        this.interval = this.recorder.getIntervalHistogram(this.interval);
+        this.total.add(this.interval);
+        return this.total.copy();
+    }
+
+    // сумма длительностей, мкс
+    long sum() {
+        return this.sum.sum();
+    }
+}
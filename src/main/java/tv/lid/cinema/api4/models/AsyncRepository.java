@@ -0,0 +1,96 @@
+package tv.lid.cinema.api4.models;
+
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// асинхронный доступ к данным: блокирующие запросы JDBC выполняются на ограниченном пуле потоков БД,
+// поток обработчика HTTP-запроса не ждет завершения запроса
+public final class AsyncRepository {
+    // дефолтные параметры пула
+    private static final int DEFAULT_THREADS = 10,   // количество потоков (по размеру пула соединений)
+                             DEFAULT_QUEUE   = 1024; // максимальное количество ожидающих запросов
+
+    // номер потока пула
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    // пул потоков БД
+    private static volatile ThreadPoolExecutor executor = AsyncRepository.create(
+        AsyncRepository.DEFAULT_THREADS,
+        AsyncRepository.DEFAULT_QUEUE
+    );
+
+    // запрос к БД
+    @FunctionalInterface
+    public static interface Query<T> {
+        T run() throws SQLException;
+    }
+
+    // конструктор
+    private AsyncRepository() {}
+
+    // перенастройка пула: threads потоков и очередь из queue запросов
+    public static synchronized void configure(final int threads, final int queue) {
+        final ThreadPoolExecutor prev = AsyncRepository.executor;
+
+        AsyncRepository.executor = AsyncRepository.create(threads, queue);
+        prev.shutdown();
+    }
+
+    // асинхронное выполнение запроса; при переполнении очереди результат завершается RejectedExecutionException
+    public static <T> CompletableFuture<T> supply(final Query<T> query) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        // выбор сервера для чтения передается в поток БД
+        final boolean pinned = ReadRouting.pinned();
+
+        try {
+            AsyncRepository.executor.execute(() -> {
+                final boolean prev = ReadRouting.pin(pinned);
+                try {
+                    future.complete(query.run());
+                } catch (Throwable exc) {
+                    future.completeExceptionally(exc);
+                } finally {
+                    ReadRouting.pin(prev);
+                }
+            });
+        } catch (RejectedExecutionException exc) {
+            future.completeExceptionally(exc);
+        }
+
+        return future;
+    }
+
+    // исходная причина ошибки асинхронного выполнения
+    public static Throwable cause(final Throwable exc) {
+        return (exc instanceof CompletionException || exc instanceof ExecutionException) && exc.getCause() != null
+            ? exc.getCause()
+            : exc;
+    }
+
+    // создание пула потоков с ограниченной очередью
+    private static ThreadPoolExecutor create(final int threads, final int queue) {
+        final int size = Math.max(threads, 1);
+
+        return new ThreadPoolExecutor(
+            size,
+            size,
+            60L,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(Math.max(queue, 1)),
+            task -> {
+                final Thread thread = new Thread(task, "api4-db-" + AsyncRepository.counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy()
+        );
+    }
+}
@@ -0,0 +1,306 @@
+package tv.lid.cinema.api4.models;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+// индекс занятости залов в памяти: интервалы сеансов [начало, начало + длительность фильма) по каждому залу;
+// проверка пересечения и запись сеанса выполняются под блокировкой полосы зала, поэтому записи в разные залы
+// идут параллельно, а в один зал -- по очереди
+final class AuditoriumIndex {
+    // количество полос блокировок (степень двойки)
+    private static final int STRIPES = 16;
+
+    // интервал сеанса в зале
+    static final class Slot {
+        final int           id;         // идентификатор сеанса
+        final int           movieId;    // идентификатор фильма
+        final byte          auditorium; // номер зала
+        final LocalDateTime start;      // начало
+        final LocalDateTime end;        // окончание
+
+        Slot(final int id, final int movieId, final byte auditorium, final LocalDateTime start, final LocalDateTime end) {
+            this.id         = id;
+            this.movieId    = movieId;
+            this.auditorium = auditorium;
+            this.start      = start;
+            this.end        = end;
+        }
+    }
+
+    // интервалы одного зала в порядке начала; интервалы, начавшиеся раньше искомого более чем на длительность
+    // самого длинного из них, закончиться позже его начала не могут, поэтому перебираются только ближайшие
+    static final class Hall {
+        // порядок интервалов: начало, идентификатор
+        private static final Comparator<Slot> ORDER = Comparator
+            .<Slot, LocalDateTime>comparing(slot -> slot.start)
+            .thenComparingInt(slot -> slot.id);
+
+        // интервалы зала
+        private final TreeSet<Slot> slots = new TreeSet<>(Hall.ORDER);
+
+        // длительность самого длинного интервала, мин (при удалении не уменьшается)
+        private long longest = 0;
+
+        // добавление интервала
+        void add(final Slot slot) {
+            this.slots.add(slot);
+            this.longest = Math.max(this.longest, Duration.between(slot.start, slot.end).toMinutes());
+        }
+
+        // удаление интервала
+        void remove(final Slot slot) {
+            this.slots.remove(slot);
+        }
+
+        // пересечение интервала [start, end) с интервалами зала, кроме сеанса except
+        boolean overlaps(final LocalDateTime start, final LocalDateTime end, final int except) {
+            if (!start.isBefore(end)) {
+                return false;
+            }
+
+            final Slot from = new Slot(Integer.MIN_VALUE, 0, (byte) 0, start.minusMinutes(this.longest), null),
+                       to   = new Slot(Integer.MIN_VALUE, 0, (byte) 0, end, null);
+
+            for (final Slot slot : this.slots.subSet(from, true, to, false)) {
+                if (slot.id != except && slot.end.isAfter(start)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // действие под блокировкой залов
+    @FunctionalInterface
+    static interface Action<T> {
+        T run() throws SQLException;
+    }
+
+    // полосы блокировок залов
+    private static final ReentrantLock[] locks = new ReentrantLock[AuditoriumIndex.STRIPES];
+
+    static {
+        for (int i = 0; i < AuditoriumIndex.locks.length; i++) {
+            AuditoriumIndex.locks[i] = new ReentrantLock();
+        }
+    }
+
+    // залы по номеру
+    private static final Map<Byte, Hall> halls = new ConcurrentHashMap<>();
+
+    // интервалы по идентификатору сеанса
+    private static final Map<Integer, Slot> slots = new ConcurrentHashMap<>();
+
+    // идентификаторы сеансов по идентификатору фильма
+    private static final Map<Integer, Set<Integer>> movies = new ConcurrentHashMap<>();
+
+    // конструктор
+    private AuditoriumIndex() {}
+
+    // полоса блокировки зала
+    private static ReentrantLock lock(final byte auditorium) {
+        return AuditoriumIndex.locks[auditorium & (AuditoriumIndex.STRIPES - 1)];
+    }
+
+    // номера полос блокировок заданных залов по возрастанию
+    private static int[] stripes(final byte[] auditoriums) {
+        final int[] stripes = new int[auditoriums.length];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = auditoriums[i] & (AuditoriumIndex.STRIPES - 1);
+        }
+        Arrays.sort(stripes);
+        return stripes;
+    }
+
+    // выполнение действия под блокировками заданных залов; полосы захватываются по возрастанию номера,
+    // поэтому перенос сеансов между залами во встречных направлениях не приводит к взаимоблокировке
+    static <T> T locked(final byte[] auditoriums, final Action<T> action) throws SQLException {
+        return AuditoriumIndex.locked(() -> auditoriums, action);
+    }
+
+    // выполнение действия под блокировками залов, набор которых зависит от индекса (зал изменяемого сеанса,
+    // залы сеансов фильма): под блокировками набор определяется заново, и если в нем появился зал другой полосы,
+    // блокировки снимаются и захватываются повторно
+    static <T> T locked(final Supplier<byte[]> auditoriums, final Action<T> action) throws SQLException {
+        int[] required = AuditoriumIndex.stripes(auditoriums.get());
+
+        while (true) {
+            final int[] stripes = required;
+
+            int locked = 0;
+            try {
+                for (int i = 0; i < stripes.length; i++) {
+                    if (i == 0 || stripes[i] != stripes[i - 1]) {
+                        AuditoriumIndex.locks[stripes[i]].lock();
+                    }
+                    locked = i + 1;
+                }
+
+                required = AuditoriumIndex.stripes(auditoriums.get());
+                if (AuditoriumIndex.covers(stripes, required)) {
+                    return action.run();
+                }
+            } finally {
+                for (int i = locked - 1; i >= 0; i--) {
+                    if (i == 0 || stripes[i] != stripes[i - 1]) {
+                        AuditoriumIndex.locks[stripes[i]].unlock();
+                    }
+                }
+            }
+        }
+    }
+
+    // все полосы required входят в locked (оба массива упорядочены)
+    private static boolean covers(final int[] locked, final int[] required) {
+        for (final int stripe : required) {
+            if (Arrays.binarySearch(locked, stripe) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // номер зала проиндексированного сеанса, null если сеанса нет в индексе
+    static Byte auditorium(final int id) {
+        final Slot slot = AuditoriumIndex.slots.get(id);
+        return slot != null ? slot.auditorium : null;
+    }
+
+    // фильм проиндексированного сеанса, null если сеанса нет в индексе
+    static Integer movieId(final int id) {
+        final Slot slot = AuditoriumIndex.slots.get(id);
+        return slot != null ? slot.movieId : null;
+    }
+
+    // пересечение интервала с сеансами зала, кроме сеанса except (под блокировкой зала)
+    static boolean overlaps(final byte auditorium, final LocalDateTime start, final LocalDateTime end, final int except) {
+        final Hall hall = AuditoriumIndex.halls.get(auditorium);
+        return hall != null && hall.overlaps(start, end, except);
+    }
+
+    // добавление либо замена интервала сеанса (под блокировкой залов нового и прежнего интервалов)
+    static void put(final Slot slot) {
+        final Slot previous = AuditoriumIndex.slots.put(slot.id, slot);
+        if (previous != null) {
+            AuditoriumIndex.halls.get(previous.auditorium).remove(previous);
+            AuditoriumIndex.unlink(previous);
+        }
+        AuditoriumIndex.halls.computeIfAbsent(slot.auditorium, key -> new Hall()).add(slot);
+        AuditoriumIndex.movies.compute(slot.movieId, (key, ids) -> {
+            final Set<Integer> linked = ids != null ? ids : ConcurrentHashMap.newKeySet();
+            linked.add(slot.id);
+            return linked;
+        });
+    }
+
+    // удаление сеанса из списка сеансов его фильма; пустой список удаляется атомарно с изменением,
+    // поэтому одновременное добавление сеанса того же фильма в другом зале не теряется
+    private static void unlink(final Slot slot) {
+        AuditoriumIndex.movies.computeIfPresent(slot.movieId, (key, ids) -> {
+            ids.remove(slot.id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    // удаление интервала сеанса
+    static void remove(final int id) {
+        final Slot slot = AuditoriumIndex.slots.get(id);
+        if (slot == null) {
+            return;
+        }
+
+        final ReentrantLock lock = AuditoriumIndex.lock(slot.auditorium);
+        lock.lock();
+        try {
+            if (AuditoriumIndex.slots.remove(id, slot)) {
+                AuditoriumIndex.halls.get(slot.auditorium).remove(slot);
+                AuditoriumIndex.unlink(slot);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // интервалы сеансов фильма
+    private static List<Slot> slotsOf(final int movieId) {
+        final Set<Integer> ids   = AuditoriumIndex.movies.get(movieId);
+        final List<Slot>   found = new ArrayList<>();
+
+        if (ids != null) {
+            for (final Integer id : ids) {
+                final Slot slot = AuditoriumIndex.slots.get(id);
+                if (slot != null && slot.movieId == movieId) {
+                    found.add(slot);
+                }
+            }
+        }
+        return found;
+    }
+
+    // удаление интервалов всех сеансов фильма
+    static void removeMovie(final int movieId) {
+        for (final Slot slot : AuditoriumIndex.slotsOf(movieId)) {
+            AuditoriumIndex.remove(slot.id);
+        }
+    }
+
+    // сеансы фильма с новой длительностью не пересекаются с другими сеансами своих залов (под блокировками
+    // всех залов); начала сеансов не меняются, поэтому достаточно проверить каждый новый интервал по индексу
+    static boolean fits(final int movieId, final short duration) {
+        for (final Slot slot : AuditoriumIndex.slotsOf(movieId)) {
+            if (AuditoriumIndex.overlaps(slot.auditorium, slot.start, slot.start.plusMinutes(duration), slot.id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // пересчет окончания сеансов фильма при изменении его длительности (под блокировками всех залов)
+    static void retime(final int movieId, final short duration) {
+        for (final Slot slot : AuditoriumIndex.slotsOf(movieId)) {
+            AuditoriumIndex.put(
+                new Slot(slot.id, movieId, slot.auditorium, slot.start, slot.start.plusMinutes(duration))
+            );
+        }
+    }
+
+    // выполнение действия под блокировками всех залов
+    static <T> T lockedAll(final Action<T> action) throws SQLException {
+        final byte[] all = new byte[AuditoriumIndex.STRIPES];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = (byte) i;
+        }
+        return AuditoriumIndex.locked(all, action);
+    }
+
+    // полное перестроение индекса по заданным интервалам
+    static void rebuild(final List<Slot> slots) {
+        try {
+            AuditoriumIndex.lockedAll(() -> {
+                AuditoriumIndex.halls.clear();
+                AuditoriumIndex.slots.clear();
+                AuditoriumIndex.movies.clear();
+                for (final Slot slot : slots) {
+                    AuditoriumIndex.put(slot);
+                }
+                return null;
+            });
+        } catch (SQLException exc) {} // действие не обращается к БД
+    }
+
+    // очистка индекса
+    static void clear() {
+        AuditoriumIndex.rebuild(new ArrayList<>());
+    }
+}
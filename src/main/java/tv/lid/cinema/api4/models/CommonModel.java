@@ -1,19 +1,43 @@
 package tv.lid.cinema.api4.models;
 
+import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import javax.sql.DataSource;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import org.jooq.DSLContext;
+import org.jooq.Insert;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.SQLDialect;
 
 // базовый абстрактный класс модели
 public abstract class CommonModel {
     // DSL context
     protected static DSLContext dslContext = null;
 
+    // стратегия подсчета количества записей
+    protected static CountStrategy countStrategy = CountStrategy.EXACT;
+
+    // максимальное количество строк в одном многострочном INSERT при пакетном создании
+    protected static final int INSERT_CHUNK = 500;
+
+    // количество строк, получаемых драйвером БД за одно обращение при потоковой выгрузке
+    private static final int EXPORT_FETCH_SIZE = 1000;
+
+    // получатель записей при потоковой выгрузке
+    @FunctionalInterface
+    public static interface Sink<T> {
+        void accept(T item) throws IOException;
+    }
+
     // идентификатор записи
     @JsonProperty(value = "id", required = false, defaultValue = "0")
     public final int id;
@@ -29,9 +53,89 @@ public abstract class CommonModel {
         this(0);
     }
 
-    // инициализация
+    // инициализация #1
+    public static final void initialize(final DSLContext dslContext, final CountStrategy countStrategy) {
+        CommonModel.dslContext    = dslContext;
+        CommonModel.countStrategy = countStrategy != null ? countStrategy : CountStrategy.EXACT;
+
+        // сбрасываем состояние, оставшееся от предыдущей инициализации
+        CountCache.invalidateEverything();
+        EntityCache.invalidateEverything();
+        PageCache.invalidateAll();
+        TitleIndex.clear();
+        AuditoriumIndex.clear();
+        Versions.invalidateEverything();
+    }
+
+    // инициализация #2
     public static final void initialize(final DSLContext dslContext) {
-        CommonModel.dslContext = dslContext;
+        CommonModel.initialize(dslContext, CountStrategy.EXACT);
+    }
+
+    // DSL context для чтения: реплика, либо основной сервер
+    protected static DSLContext reader() {
+        return ReadRouting.reader(CommonModel.dslContext);
+    }
+
+    // размер выборки серверного курсора при потоковой выгрузке
+    protected static int exportFetchSize() {
+        // драйвер MySQL передает строки потоком только при значении Integer.MIN_VALUE
+        return CommonModel.dslContext.dialect().family() == SQLDialect.MYSQL
+            ? Integer.MIN_VALUE
+            : CommonModel.EXPORT_FETCH_SIZE;
+    }
+
+    // оценка количества записей в таблице по статистике СУБД, -1 если оценка недоступна
+    protected static int estimate(final String tableName) {
+        final String sql;
+
+        switch (CommonModel.dslContext.dialect().family()) {
+            case POSTGRES:
+                sql = "SELECT reltuples FROM pg_class WHERE relname = ?";
+                break;
+            case MYSQL:
+                sql = "SELECT table_rows FROM information_schema.tables WHERE table_schema = DATABASE() AND table_name = ?";
+                break;
+            default:
+                return -1;
+        }
+
+        try {
+            final Result<Record> rows = CommonModel.reader().fetch(sql, tableName);
+            if (rows.isEmpty() || !(rows.get(0).get(0) instanceof Number)) {
+                return -1;
+            }
+
+            final long est = ((Number) rows.get(0).get(0)).longValue();
+            return est >= 0 && est <= Integer.MAX_VALUE ? (int) est : -1;
+        } catch (Exception exc) {
+            return -1;
+        }
+    }
+
+    // выполнение INSERT с получением идентификаторов созданных записей в порядке строк запроса;
+    // RETURNING jOOQ в H2 и MySQL перечитывает строки по identity таблицы, которого у таблиц без кодогенерации нет,
+    // поэтому запрос выполняется напрямую через JDBC, а ключи берутся у драйвера по имени столбца
+    protected static List<Integer> insertReturningIds(final DSLContext dsl, final Insert<?> insert) {
+        final String       sql    = dsl.render(insert);
+        final List<Object> values = dsl.extractBindValues(insert);
+
+        return dsl.connectionResult(connection -> {
+            try (final PreparedStatement statement = connection.prepareStatement(sql, new String[] { "id" })) {
+                for (int i = 0; i < values.size(); i++) {
+                    statement.setObject(i + 1, values.get(i));
+                }
+                statement.executeUpdate();
+
+                final List<Integer> ids = new ArrayList<>();
+                try (final ResultSet keys = statement.getGeneratedKeys()) {
+                    while (keys.next()) {
+                        ids.add(keys.getInt(1));
+                    }
+                }
+                return ids;
+            }
+        });
     }
 
     // создание таблицы в БД
@@ -64,13 +168,13 @@ public abstract class CommonModel {
         throw new SQLException();
     }
 
-    // удаление записи из БД по заданному идентификатору
-    public static void kill(final int id) throws SQLException {
+    // удаление записи из БД по заданному идентификатору, false если запись не найдена
+    public static boolean kill(final int id) throws SQLException {
         throw new SQLException();
     }
 
-    // сохранение данной записи в БД
-    public void save() throws SQLException {
+    // сохранение данной записи в БД, возвращает сохраненную запись или null если она не найдена
+    public CommonModel save() throws SQLException {
         throw new SQLException();
     }
 }
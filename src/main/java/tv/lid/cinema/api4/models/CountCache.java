@@ -0,0 +1,78 @@
+package tv.lid.cinema.api4.models;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+// кэш количества записей, сбрасываемый при изменении данных
+final class CountCache {
+    // все созданные кэши, для сброса при повторной инициализации моделей
+    private static final List<CountCache> instances = new CopyOnWriteArrayList<>();
+
+    // значения количества записей по ключу
+    private final ConcurrentMap<Integer, Integer> counts = new ConcurrentHashMap<>();
+
+    // версия данных, увеличивается при каждом сбросе
+    private final AtomicLong version = new AtomicLong();
+
+    // момент последнего сброса, мс
+    private volatile long invalidated = 0;
+
+    // интерфейс подсчета количества записей в БД
+    @FunctionalInterface
+    static interface Counter {
+        int count() throws SQLException;
+    }
+
+    // конструктор
+    CountCache() {
+        CountCache.instances.add(this);
+    }
+
+    // количество записей по ключу: из кэша, либо подсчетом в БД
+    int get(final int key, final Counter counter) throws SQLException {
+        final Integer cached = this.counts.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        // версию запоминаем до подсчета, чтобы не сохранить значение, устаревшее из-за параллельной записи
+        final long ver = this.version.get();
+        final int  cnt = counter.count();
+
+        // значение, подсчитанное на реплике вскоре после изменения, может оказаться устаревшим
+        if (!ReadRouting.settled(this.invalidated)) {
+            return cnt;
+        }
+
+        this.counts.put(key, cnt);
+        if (this.version.get() != ver) {
+            this.counts.remove(key);
+        }
+        return cnt;
+    }
+
+    // сброс значения по ключу
+    void invalidate(final int key) {
+        this.invalidated = System.currentTimeMillis();
+        this.version.incrementAndGet();
+        this.counts.remove(key);
+    }
+
+    // сброс всех значений
+    void invalidateAll() {
+        this.invalidated = System.currentTimeMillis();
+        this.version.incrementAndGet();
+        this.counts.clear();
+    }
+
+    // сброс всех значений во всех кэшах
+    static void invalidateEverything() {
+        for (final CountCache cache : CountCache.instances) {
+            cache.invalidateAll();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package tv.lid.cinema.api4.models;
+
+// стратегия подсчета общего количества записей для постраничного вывода
+public enum CountStrategy {
+    EXACT    ("exact"),    // отдельный запрос SELECT COUNT(*)
+    WINDOW   ("window"),   // COUNT(*) OVER() в запросе самой страницы
+    CACHED   ("cached"),   // кэшированное значение, сбрасываемое при изменении данных
+    ESTIMATE ("estimate"); // оценка по статистике СУБД (PostgreSQL, MySQL)
+
+    private final String name;
+
+    private CountStrategy(final String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    // стратегия по имени, EXACT для пустого или неизвестного имени
+    public static CountStrategy of(final String name) {
+        for (final CountStrategy strategy : CountStrategy.values()) {
+            if (strategy.name.equalsIgnoreCase(name)) {
+                return strategy;
+            }
+        }
+        return CountStrategy.EXACT;
+    }
+}
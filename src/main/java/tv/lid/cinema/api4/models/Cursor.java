@@ -0,0 +1,62 @@
+package tv.lid.cinema.api4.models;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+// курсор для постраничного вывода методом поиска (keyset pagination)
+public final class Cursor {
+    // признаки направления перемещения по списку
+    private static final String DIR_NEXT = "n", // вперед
+                                DIR_PREV = "p"; // назад
+
+    // направление перемещения: true -- к следующей странице, false -- к предыдущей
+    public final boolean forward;
+
+    // значение ключа сортировки граничной записи
+    public final String key;
+
+    // идентификатор граничной записи
+    public final int id;
+
+    // конструктор
+    public Cursor(
+        final boolean forward,
+        final String  key,
+        final int     id
+    ) {
+        this.forward = forward;
+        this.key     = key;
+        this.id      = id;
+    }
+
+    // кодирование курсора в непрозрачную строку
+    public String encode() {
+        final String raw = (this.forward ? Cursor.DIR_NEXT : Cursor.DIR_PREV) + ":" + this.id + ":" + this.key;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // декодирование курсора из строки, null при некорректных данных
+    public static Cursor decode(final String token) {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+
+        try {
+            final String   raw   = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            final String[] parts = raw.split(":", 3);
+
+            if (parts.length != 3 || !(parts[0].equals(Cursor.DIR_NEXT) || parts[0].equals(Cursor.DIR_PREV))) {
+                return null;
+            }
+
+            return new Cursor(parts[0].equals(Cursor.DIR_NEXT), parts[2], Integer.parseInt(parts[1]));
+        } catch (IllegalArgumentException exc) {
+            return null;
+        }
+    }
+
+    // строковое представление курсора, null для отсутствующего курсора
+    public static String encode(final Cursor cursor) {
+        return cursor != null ? cursor.encode() : null;
+    }
+}
@@ -0,0 +1,164 @@
+package tv.lid.cinema.api4.models;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+// ограниченный кэш записей по идентификатору (W-TinyLFU)
+public final class EntityCache<T extends CommonModel> {
+    // дефолтные параметры кэша
+    private static final long DEFAULT_SIZE = 10000, // максимальное количество записей в каждом кэше
+                              DEFAULT_TTL  = 300;   // время жизни записи, секунд
+
+    // все созданные кэши
+    private static final List<EntityCache<?>> instances = new CopyOnWriteArrayList<>();
+
+    // текущие параметры кэшей
+    private static volatile long size = EntityCache.DEFAULT_SIZE,
+                                 ttl  = EntityCache.DEFAULT_TTL;
+
+    // имя кэша
+    private final String name;
+
+    // версия данных, увеличивается при каждом сбросе
+    private final AtomicLong version = new AtomicLong();
+
+    // момент последнего сброса записей, мс
+    private volatile long invalidated = 0;
+
+    // сам кэш
+    private volatile Cache<Integer, T> cache;
+
+    // интерфейс чтения записи из БД
+    @FunctionalInterface
+    static interface Loader<T> {
+        T load(int id) throws SQLException;
+    }
+
+    // статистика кэша
+    public static final class Stats {
+        public final String name;      // имя кэша
+        public final long   size;      // количество записей
+        public final long   hits;      // количество попаданий
+        public final long   misses;    // количество промахов
+        public final long   evictions; // количество вытесненных записей
+        public final double hitRate;   // доля попаданий
+
+        // конструктор
+        public Stats(final String name, final long size, final CacheStats stats) {
+            this.name      = name;
+            this.size      = size;
+            this.hits      = stats.hitCount();
+            this.misses    = stats.missCount();
+            this.evictions = stats.evictionCount();
+            this.hitRate   = stats.hitRate();
+        }
+    }
+
+    // конструктор
+    EntityCache(final String name) {
+        this.name  = name;
+        this.cache = EntityCache.build();
+
+        EntityCache.instances.add(this);
+    }
+
+    // создание кэша с текущими параметрами
+    private static <T> Cache<Integer, T> build() {
+        return Caffeine.newBuilder()
+            .maximumSize(EntityCache.size)
+            .expireAfterWrite(EntityCache.ttl, TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+    }
+
+    // настройка параметров всех кэшей, кэши при этом очищаются
+    public static void configure(final long size, final long ttl) {
+        EntityCache.size = size >= 0 ? size : EntityCache.DEFAULT_SIZE;
+        EntityCache.ttl  = ttl  >  0 ? ttl  : EntityCache.DEFAULT_TTL;
+
+        for (final EntityCache<?> instance : EntityCache.instances) {
+            instance.version.incrementAndGet();
+            instance.cache = EntityCache.build();
+        }
+    }
+
+    // очистка всех кэшей
+    static void invalidateEverything() {
+        for (final EntityCache<?> instance : EntityCache.instances) {
+            instance.invalidateAll();
+        }
+    }
+
+    // статистика всех кэшей, включая кэш страниц
+    public static List<Stats> stats() {
+        final List<Stats> result = new ArrayList<>();
+        for (final EntityCache<?> instance : EntityCache.instances) {
+            result.add(new Stats(instance.name, instance.cache.estimatedSize(), instance.cache.stats()));
+        }
+
+        // кэш готовых страниц списков
+        final Stats pages = PageCache.stats();
+        if (pages != null) {
+            result.add(pages);
+        }
+        return result;
+    }
+
+    // запись по идентификатору: из кэша, либо из БД с сохранением в кэше
+    T get(final int id, final Loader<T> loader) throws SQLException {
+        final Cache<Integer, T> cache = this.cache;
+
+        final T cached = cache.getIfPresent(id);
+        if (cached != null) {
+            return cached;
+        }
+
+        // версию запоминаем до чтения, чтобы не сохранить запись, устаревшую из-за параллельной записи
+        final long ver  = this.version.get();
+        final T    item = loader.load(id);
+
+        // запись, прочитанная с реплики вскоре после изменения, может оказаться устаревшей
+        if (item != null && ReadRouting.settled(this.invalidated)) {
+            cache.put(id, item);
+            if (this.version.get() != ver) {
+                cache.invalidate(id);
+            }
+        }
+        return item;
+    }
+
+    // запись по идентификатору, только если она есть в кэше
+    T peek(final int id) {
+        return this.cache.getIfPresent(id);
+    }
+
+    // удаление записи из кэша
+    void invalidate(final int id) {
+        this.invalidated = System.currentTimeMillis();
+        this.version.incrementAndGet();
+        this.cache.invalidate(id);
+    }
+
+    // удаление из кэша записей, удовлетворяющих условию
+    void invalidateIf(final Predicate<T> predicate) {
+        this.invalidated = System.currentTimeMillis();
+        this.version.incrementAndGet();
+        this.cache.asMap().values().removeIf(predicate);
+    }
+
+    // очистка кэша
+    void invalidateAll() {
+        this.invalidated = System.currentTimeMillis();
+        this.version.incrementAndGet();
+        this.cache.invalidateAll();
+    }
+}
@@ -2,14 +2,26 @@ package tv.lid.cinema.api4.models;
 
 import java.beans.ConstructorProperties;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import static org.jooq.impl.DSL.*;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.InsertValuesStep3;
 import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.SelectField;
 import org.jooq.Table;
+import org.jooq.impl.DSL;
 import org.jooq.impl.SQLDataType;
 
 // класс модели кинофильма
@@ -17,6 +29,39 @@ public class MovieModel extends CommonModel {
     // имя SQL-таблицы с фильмами
     private static final Table<Record> TABLE_MOVIES = table(name("api4_movies"));
 
+    // типизированные столбцы таблицы с фильмами
+    private static final Field<Integer> ID       = field(name("id"),       int.class);
+    private static final Field<String>  TITLE    = field(name("title"),    String.class);
+    private static final Field<Short>   DURATION = field(name("duration"), short.class);
+    private static final Field<Short>   YEAR     = field(name("year"),     short.class);
+
+    // имя индекса для постраничного вывода
+    private static final String INDEX_YEAR_ID = "api4_movies_year_id";
+
+    // кэш количества записей для стратегии CACHED
+    private static final CountCache COUNTS = new CountCache();
+
+    // кэш записей по идентификатору
+    private static final EntityCache<MovieModel> CACHE = new EntityCache<>(MovieModel.TABLE_MOVIES.getName());
+
+    // версии данных для условных запросов: всего списка и каждого фильма
+    private static final Versions VERSIONS = new Versions("m");
+
+    // подготовленные запросы горячих путей: SQL рендерится один раз, при выполнении передаются только аргументы
+    private static final PreparedQuery QUERY_FIND = new PreparedQuery(dsl -> dsl
+        .select(MovieModel.ID, MovieModel.TITLE, MovieModel.DURATION, MovieModel.YEAR)
+        .from(MovieModel.TABLE_MOVIES)
+        .where(MovieModel.ID.equal(PreparedQuery.arg(0)))
+    );
+
+    private static final PreparedQuery QUERY_COUNT = new PreparedQuery(dsl -> dsl
+        .selectCount()
+        .from(MovieModel.TABLE_MOVIES)
+    );
+
+    private static final PreparedQuery QUERY_PAGE       = new PreparedQuery(MovieModel.page(false)),
+                                       QUERY_PAGE_TOTAL = new PreparedQuery(MovieModel.page(true));
+
     // название
     @JsonProperty(value = "title", required = true)
     public final String title;
@@ -68,6 +113,19 @@ public class MovieModel extends CommonModel {
             .execute();
     }
 
+    // создание индексов таблицы в БД
+    public static void createIndexes() throws SQLException {
+        // индекс для сортировки и постраничного вывода по (year, id)
+        CommonModel.dslContext
+            .createIndexIfNotExists(MovieModel.INDEX_YEAR_ID)
+            .on(
+                MovieModel.TABLE_MOVIES,
+                MovieModel.YEAR,
+                MovieModel.ID
+            )
+            .execute();
+    }
+
     // удаление таблицы из БД
     public static void dropTable() throws SQLException {
         CommonModel.dslContext
@@ -80,100 +138,390 @@ public class MovieModel extends CommonModel {
         return MovieModel.TABLE_MOVIES.getName();
     }
 
+    // потоковая выгрузка всех записей в порядке идентификаторов через серверный курсор
+    public static void export(final CommonModel.Sink<MovieModel> sink) throws SQLException {
+        // курсор PostgreSQL работает только внутри транзакции
+        CommonModel.reader().transaction(cfg -> {
+            try (
+                org.jooq.Cursor<? extends Record> cursor = using(cfg)
+                    .select(
+                        MovieModel.ID,
+                        MovieModel.TITLE,
+                        MovieModel.DURATION,
+                        MovieModel.YEAR
+                    )
+                    .from(MovieModel.TABLE_MOVIES)
+                    .orderBy(MovieModel.ID)
+                    .fetchSize(CommonModel.exportFetchSize())
+                    .fetchLazy()
+            ) {
+                for (final Record record : cursor) {
+                    sink.accept(MovieModel.from(record));
+                }
+            }
+        });
+    }
+
     // подсчет количества записей в БД
     public static int count() throws SQLException {
-        int cnt = CommonModel.dslContext
-            .selectCount()
-            .from(MovieModel.TABLE_MOVIES)
-            .fetchOne(0, int.class);
+        int cnt = MovieModel.QUERY_COUNT
+            .fetchOne()
+            .get(0, int.class);
         return cnt;
     }
 
+    // построение индекса названий по всем записям в БД
+    public static void indexTitles() throws SQLException {
+        final List<MovieModel> movies = new ArrayList<>();
+        MovieModel.export(movies::add);
+        TitleIndex.rebuild(movies);
+    }
+
+    // поиск записей по подстроке названия в индексе, не более limit записей в порядке ранга
+    public static List<MovieModel> search(final String query, final int limit) {
+        return TitleIndex.search(query, limit);
+    }
+
     // проверка существования в БД записи с заданным идентификатором
     public static boolean exists(final int id) throws SQLException {
-        int cnt = CommonModel.dslContext
-            .selectCount()
+        return MovieModel.find(id) != null;
+    }
+
+    // выбор существующих идентификаторов из заданного набора одним запросом
+    public static Set<Integer> existing(final Collection<Integer> ids) throws SQLException {
+        if (ids.isEmpty()) {
+            return new HashSet<>();
+        }
+
+        return CommonModel.reader()
+            .select(MovieModel.ID)
             .from(MovieModel.TABLE_MOVIES)
             .where(
-                field(name("id"), int.class).equal(id)
+                MovieModel.ID.in(ids)
             )
-            .fetchOne(0, int.class);
-        return cnt != 0;
+            .fetchSet(MovieModel.ID);
     }
 
-    // чтение записи из БД по заданному идентификатору
+    // чтение записи по заданному идентификатору, null если запись не найдена
     public static MovieModel find(final int id) throws SQLException {
-        MovieModel result = CommonModel.dslContext
-            .select(
-                field(name("id"),       int.class),
-                field(name("title"),    String.class),
-                field(name("duration"), short.class),
-                field(name("year"),     short.class)
-            )
-            .from(MovieModel.TABLE_MOVIES)
-            .where(
-                field(name("id"), int.class).equal(id)
-            )
-            .fetchOne()
-            .into(MovieModel.class);
-        return result;
+        return MovieModel.CACHE.get(id, MovieModel::load);
+    }
+
+    // метка версии списка фильмов
+    public static Versions.Tag listTag() {
+        return MovieModel.VERSIONS.tag();
+    }
+
+    // метка версии фильма с заданным идентификатором
+    public static Versions.Tag tag(final int id) {
+        return MovieModel.VERSIONS.tag(id);
+    }
+
+    // асинхронное чтение записи; запись из кэша возвращается без переключения потока
+    public static CompletableFuture<MovieModel> findAsync(final int id) {
+        final MovieModel cached = MovieModel.CACHE.peek(id);
+        return cached != null
+            ? CompletableFuture.completedFuture(cached)
+            : AsyncRepository.supply(() -> MovieModel.find(id));
+    }
+
+    // чтение записи из БД по заданному идентификатору в обход кэша
+    private static MovieModel load(final int id) throws SQLException {
+        final Record record = MovieModel.QUERY_FIND.fetchOne(id);
+        return record != null ? MovieModel.from(record) : null;
+    }
+
+    // подсчет количества записей в соответствии со стратегией подсчета
+    public static int total() throws SQLException {
+        switch (CommonModel.countStrategy) {
+            case CACHED:
+                return MovieModel.COUNTS.get(0, MovieModel::count);
+            case ESTIMATE: {
+                final int est = CommonModel.estimate(MovieModel.tableName());
+                return est >= 0 ? est : MovieModel.count();
+            }
+            default:
+                return MovieModel.count();
+        }
+    }
+
+    // асинхронно получить страницу записей по номеру страницы
+    public static CompletableFuture<Page<MovieModel>> listAsync(
+        final int     page,
+        final int     numb,
+        final boolean withTotal
+    ) {
+        return AsyncRepository.supply(() -> MovieModel.list(page, numb, withTotal));
+    }
+
+    // асинхронно получить страницу записей методом поиска
+    public static CompletableFuture<Page<MovieModel>> listAsync(
+        final Cursor  cursor,
+        final int     numb,
+        final boolean withTotal
+    ) {
+        return AsyncRepository.supply(() -> MovieModel.list(cursor, numb, withTotal));
+    }
+
+    // получить страницу записей из БД по номеру страницы
+    public static Page<MovieModel> list(
+        final int     page,
+        final int     numb,
+        final boolean withTotal
+    ) throws SQLException {
+        // количество записей подсчитывается в том же запросе
+        final boolean window = withTotal && CommonModel.countStrategy == CountStrategy.WINDOW;
+
+        final Result<Record> result = (window ? MovieModel.QUERY_PAGE_TOTAL : MovieModel.QUERY_PAGE)
+            .fetch(numb + 1, (page - 1) * numb);
+
+        // для страницы за пределами списка оконная функция не возвращает количество
+        final int total = !withTotal ? -1 : !window ? MovieModel.total()
+            : result.isNotEmpty() ? result.get(0).get("total", int.class)
+            : page > 1 ? MovieModel.count() : 0;
+
+        return Page.offset(result.map(MovieModel::from), numb, total, page, MovieModel::cursor);
+    }
+
+    // шаблон запроса страницы по номеру (аргументы: количество записей, смещение)
+    private static PreparedQuery.Template page(final boolean window) {
+        return dsl -> {
+            final List<SelectField<?>> columns = new ArrayList<>(Arrays.asList(
+                MovieModel.ID,
+                MovieModel.TITLE,
+                MovieModel.DURATION,
+                MovieModel.YEAR
+            ));
+            if (window) {
+                columns.add(DSL.count().over().as("total"));
+            }
+
+            return dsl
+                .select(columns)
+                .from(MovieModel.TABLE_MOVIES)
+                .orderBy(
+                    MovieModel.YEAR.desc(),
+                    MovieModel.ID.desc()
+                )
+                .limit(PreparedQuery.arg(0))
+                .offset(PreparedQuery.arg(1));
+        };
     }
 
-    // получить список записей из БД с постраничным выводом
-    public static List<MovieModel> list(final int page, final int numb) throws SQLException {
-        List<MovieModel> result = CommonModel.dslContext
+    // получить страницу записей из БД методом поиска от заданного курсора
+    public static Page<MovieModel> list(
+        final Cursor  cursor,
+        final int     numb,
+        final boolean withTotal
+    ) throws SQLException {
+        // значение ключа сортировки граничной записи
+        final short key = Short.parseShort(cursor.key);
+
+        final List<MovieModel> rows = CommonModel.reader()
             .select(
-                field(name("id"),       int.class),
-                field(name("title"),    String.class),
-                field(name("duration"), short.class),
-                field(name("year"),     short.class)
+                MovieModel.ID,
+                MovieModel.TITLE,
+                MovieModel.DURATION,
+                MovieModel.YEAR
             )
             .from(MovieModel.TABLE_MOVIES)
+            .where(
+                cursor.forward
+                    ? row(MovieModel.YEAR, MovieModel.ID).lessThan(key, cursor.id)
+                    : row(MovieModel.YEAR, MovieModel.ID).greaterThan(key, cursor.id)
+            )
             .orderBy(
-                field(name("year"), short.class).desc()
+                cursor.forward ? MovieModel.YEAR.desc() : MovieModel.YEAR.asc(),
+                cursor.forward ? MovieModel.ID.desc()   : MovieModel.ID.asc()
             )
-            .limit(numb)
-            .offset((page - 1) * numb)
-            .fetchInto(MovieModel.class);
-        return result;
+            .limit(numb + 1)
+            .fetch(MovieModel::from);
+
+        // при поиске оконная функция посчитала бы только отфильтрованные записи
+        final int total = withTotal ? MovieModel.total() : -1;
+
+        return Page.seek(rows, numb, total, cursor.forward, MovieModel::cursor);
     }
 
-    // удаление записи из БД по заданному идентификатору
-    public static void kill(final int id) throws SQLException {
-        CommonModel.dslContext
+    // создание экземпляра из записи выборки (id, title, duration, year) по позициям столбцов, без рефлексии
+    public static MovieModel from(final Record record) {
+        return new MovieModel(
+            record.get(0, int.class),
+            record.get(1, String.class),
+            record.get(2, short.class),
+            record.get(3, short.class)
+        );
+    }
+
+    // курсор, указывающий на данную запись
+    public Cursor cursor(final boolean forward) {
+        return new Cursor(forward, String.valueOf(this.year), this.id);
+    }
+
+    // удаление записи из БД по заданному идентификатору, false если запись не найдена
+    public static boolean kill(final int id) throws SQLException {
+        // при шардировании сеансы фильма удаляются явно на шарде фильма, где нет внешнего ключа; удаление
+        // фильма и его сеансов выполняется под блокировками всех залов, поэтому сеанс, сохраняемый одновременно,
+        // записывается либо до удаления (и удаляется вместе с остальными), либо после и уже не находит фильм
+        final int affected = Shards.enabled()
+            ? AuditoriumIndex.lockedAll(() -> {
+                final int count = MovieModel.delete(id);
+                if (count > 0) {
+                    ScheduleModel.killMovie(id);
+                    MovieModel.forget(id);
+                }
+                return count;
+            })
+            : MovieModel.delete(id);
+
+        // без шардирования сеансы фильма удаляются каскадно
+        if (affected > 0 && !Shards.enabled()) {
+            MovieModel.forget(id);
+        }
+
+        return affected > 0;
+    }
+
+    // удаление записи фильма на основном сервере
+    private static int delete(final int id) {
+        return CommonModel.dslContext
             .deleteFrom(MovieModel.TABLE_MOVIES)
             .where(
-                field(name("id"), int.class).equal(id)
+                MovieModel.ID.equal(id)
             )
             .execute();
     }
 
-    // сохранение данной записи в БД
-    public void save() throws SQLException {
+    // сброс кэшей и индексов удаленного фильма и его сеансов
+    private static void forget(final int id) {
+        MovieModel.COUNTS.invalidate(0);
+        MovieModel.CACHE.invalidate(id);
+        MovieModel.VERSIONS.drop(id);
+        ScheduleModel.invalidateMovie(id);
+        TitleIndex.remove(id);
+        AuditoriumIndex.removeMovie(id);
+    }
+
+    // пакетное создание записей в одной транзакции, возвращает созданные записи в исходном порядке
+    public static List<MovieModel> saveAll(final List<MovieModel> movies) throws SQLException {
+        if (movies.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        final List<MovieModel> saved = CommonModel.dslContext.transactionResult(cfg -> {
+            final DSLContext       tx     = using(cfg);
+            final List<MovieModel> result = new ArrayList<>(movies.size());
+
+            // многострочные INSERT порциями по INSERT_CHUNK записей
+            for (int from = 0; from < movies.size(); from += CommonModel.INSERT_CHUNK) {
+                final List<MovieModel> chunk = movies.subList(from, Math.min(from + CommonModel.INSERT_CHUNK, movies.size()));
+
+                InsertValuesStep3<Record, String, Short, Short> insert = tx
+                    .insertInto(
+                        MovieModel.TABLE_MOVIES,
+                        MovieModel.TITLE,
+                        MovieModel.DURATION,
+                        MovieModel.YEAR
+                    );
+                for (final MovieModel movie : chunk) {
+                    insert = insert.values(movie.title, movie.duration, movie.year);
+                }
+
+                final List<Integer> ids = CommonModel.insertReturningIds(tx, insert);
+                if (ids.size() != chunk.size()) {
+                    throw new SQLException();
+                }
+
+                for (int i = 0; i < chunk.size(); i++) {
+                    final MovieModel movie = chunk.get(i);
+                    result.add(new MovieModel(ids.get(i), movie.title, movie.duration, movie.year));
+                }
+            }
+
+            return result;
+        });
+
+        MovieModel.COUNTS.invalidate(0);
+        for (final MovieModel movie : saved) {
+            MovieModel.VERSIONS.bump(movie.id);
+            TitleIndex.put(movie);
+        }
+
+        return saved;
+    }
+
+    // сохранение данной записи в БД, возвращает сохраненную запись или null если она не найдена;
+    // длительность, при которой сеансы фильма пересекутся с другими сеансами, не сохраняется --
+    // выбрасывается ScheduleModel.OverlapException
+    public MovieModel save() throws SQLException {
         if (this.id == 0) { // создание новой
-            CommonModel.dslContext
-                .insertInto(
-                    MovieModel.TABLE_MOVIES,
-                    field(name("title"),    String.class),
-                    field(name("duration"), short.class),
-                    field(name("year"),     short.class)
-                )
-                .values(
-                    this.title,
-                    this.duration,
-                    this.year
-                )
-                .execute();
+            final List<Integer> ids = CommonModel.insertReturningIds(
+                CommonModel.dslContext,
+                CommonModel.dslContext
+                    .insertInto(
+                        MovieModel.TABLE_MOVIES,
+                        MovieModel.TITLE,
+                        MovieModel.DURATION,
+                        MovieModel.YEAR
+                    )
+                    .values(
+                        this.title,
+                        this.duration,
+                        this.year
+                    )
+            );
+
+            if (ids.size() != 1) {
+                throw new SQLException();
+            }
+
+            final int id = ids.get(0);
+
+            MovieModel.COUNTS.invalidate(0);
+            MovieModel.VERSIONS.bump(id);
+
+            final MovieModel saved = new MovieModel(
+                id,
+                this.title,
+                this.duration,
+                this.year
+            );
+            TitleIndex.put(saved);
+
+            return saved;
         } else { // изменение ранее созданной
-            CommonModel.dslContext
-                .update(MovieModel.TABLE_MOVIES)
-                .set(field(name("title"),    String.class), this.title)
-                .set(field(name("duration"), short.class),  this.duration)
-                .set(field(name("year"),     short.class),  this.year)
-                .where(
-                    field(name("id"), int.class).equal(this.id)
-                )
-                .execute();
-        };
+            // длительность фильма задает окончание его сеансов: проверка пересечений, изменение в БД и пересчет
+            // интервалов выполняются под блокировками всех залов, поэтому новые сеансы фильма, сохраняемые
+            // одновременно, получают уже новую длительность
+            final int affected = AuditoriumIndex.lockedAll(() -> {
+                if (!AuditoriumIndex.fits(this.id, this.duration)) {
+                    throw new ScheduleModel.OverlapException();
+                }
+
+                final int count = CommonModel.dslContext
+                    .update(MovieModel.TABLE_MOVIES)
+                    .set(MovieModel.TITLE,    this.title)
+                    .set(MovieModel.DURATION, this.duration)
+                    .set(MovieModel.YEAR,     this.year)
+                    .where(
+                        MovieModel.ID.equal(this.id)
+                    )
+                    .execute();
+
+                MovieModel.CACHE.invalidate(this.id);
+                MovieModel.VERSIONS.bump(this.id);
+
+                if (count > 0) {
+                    AuditoriumIndex.retime(this.id, this.duration);
+                }
+                return count;
+            });
+
+            if (affected > 0) {
+                TitleIndex.put(this);
+            }
+
+            return affected > 0 ? this : null;
+        }
     }
 }
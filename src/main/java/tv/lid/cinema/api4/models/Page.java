@@ -0,0 +1,98 @@
+package tv.lid.cinema.api4.models;
+
+import java.util.Collections;
+import java.util.List;
+
+// страница записей вместе с общим количеством и курсорами соседних страниц
+public final class Page<T extends CommonModel> {
+    // записи страницы в порядке вывода
+    public final List<T> list;
+
+    // общее количество записей, -1 если не подсчитывалось
+    public final int total;
+
+    // курсор следующей страницы, null если ее нет
+    public final Cursor next;
+
+    // курсор предыдущей страницы, null если ее нет
+    public final Cursor prev;
+
+    // конструктор
+    public Page(
+        final List<T> list,
+        final int     total,
+        final Cursor  next,
+        final Cursor  prev
+    ) {
+        this.list  = list;
+        this.total = total;
+        this.next  = next;
+        this.prev  = prev;
+    }
+
+    // интерфейс построения курсора по граничной записи
+    @FunctionalInterface
+    public static interface Bound<T> {
+        Cursor cursor(T item, boolean forward);
+    }
+
+    // формирование страницы по выборке методом поиска из numb + 1 записей в порядке обхода
+    public static <T extends CommonModel> Page<T> seek(
+        final List<T>  rows,
+        final int      numb,
+        final int      total,
+        final boolean  forward,
+        final Bound<T> bound
+    ) {
+        // наличие записей за пределами страницы в направлении обхода
+        final boolean more = rows.size() > numb;
+        if (more) {
+            rows.remove(rows.size() - 1);
+        }
+
+        // при обходе назад записи выбираются в обратном порядке
+        if (!forward) {
+            Collections.reverse(rows);
+        }
+
+        if (rows.isEmpty()) {
+            return new Page<>(rows, total, null, null);
+        }
+
+        final T first = rows.get(0),
+                last  = rows.get(rows.size() - 1);
+
+        return new Page<>(
+            rows,
+            total,
+            !forward || more ? bound.cursor(last, true)   : null,
+            forward  || more ? bound.cursor(first, false) : null
+        );
+    }
+
+    // формирование страницы по выборке с заданным номером страницы из numb + 1 записей
+    public static <T extends CommonModel> Page<T> offset(
+        final List<T>  rows,
+        final int      numb,
+        final int      total,
+        final int      page,
+        final Bound<T> bound
+    ) {
+        // наличие записей на следующих страницах
+        final boolean more = rows.size() > numb;
+        if (more) {
+            rows.remove(rows.size() - 1);
+        }
+
+        if (rows.isEmpty()) {
+            return new Page<>(rows, total, null, null);
+        }
+
+        return new Page<>(
+            rows,
+            total,
+            more     ? bound.cursor(rows.get(rows.size() - 1), true) : null,
+            page > 1 ? bound.cursor(rows.get(0), false)              : null
+        );
+    }
+}
@@ -0,0 +1,104 @@
+package tv.lid.cinema.api4.models;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import tv.lid.cinema.api4.codecs.EncodedBody;
+
+// кэш готовых сериализованных страниц списков, ограниченный по объему в байтах;
+// страница действительна, пока не изменилась версия данных, под которой она была построена
+public final class PageCache {
+    // имя кэша в статистике
+    private static final String NAME = "pages";
+
+    // дефолтный объем кэша, байт
+    private static final long DEFAULT_BYTES = 16L * 1024 * 1024;
+
+    // оценка накладных расходов на одну запись, байт
+    private static final int ENTRY_OVERHEAD = 96;
+
+    // страница и ETag версии данных, под которой она была построена
+    private static final class Entry {
+        final String      etag; // ETag версии данных
+        final EncodedBody body; // тело ответа
+
+        Entry(final String etag, final EncodedBody body) {
+            this.etag = etag;
+            this.body = body;
+        }
+    }
+
+    // сам кэш (null -- кэш отключен)
+    private static volatile Cache<String, Entry> cache = PageCache.build(PageCache.DEFAULT_BYTES);
+
+    // конструктор
+    private PageCache() {}
+
+    // создание кэша заданного объема
+    private static Cache<String, Entry> build(final long bytes) {
+        return bytes > 0
+            ? Caffeine.newBuilder()
+                .maximumWeight(bytes)
+                .<String, Entry>weigher((key, entry) ->
+                    2 * key.length() + entry.body.weight() + PageCache.ENTRY_OVERHEAD
+                )
+                .recordStats()
+                .build()
+            : null;
+    }
+
+    // настройка объема кэша, кэш при этом очищается (0 -- кэш отключен)
+    public static void configure(final long bytes) {
+        PageCache.cache = PageCache.build(bytes >= 0 ? bytes : PageCache.DEFAULT_BYTES);
+    }
+
+    // кэш включен
+    public static boolean enabled() {
+        return PageCache.cache != null;
+    }
+
+    // страница по ключу, если она построена под текущей версией данных
+    public static EncodedBody get(final String key, final Versions.Tag tag) {
+        final Cache<String, Entry> cache = PageCache.cache;
+        if (cache == null) {
+            return null;
+        }
+
+        final Entry entry = cache.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+
+        // данные изменились после построения страницы
+        if (!entry.etag.equals(tag.etag)) {
+            cache.asMap().remove(key, entry);
+            return null;
+        }
+        return entry.body;
+    }
+
+    // сохранение страницы, построенной под заданной версией данных
+    public static void put(final String key, final Versions.Tag tag, final EncodedBody body) {
+        // страница, прочитанная с реплики вскоре после изменения, может оказаться устаревшей
+        final Cache<String, Entry> cache = PageCache.cache;
+        if (cache != null && ReadRouting.settled(tag.lastModified)) {
+            cache.put(key, new Entry(tag.etag, body));
+        }
+    }
+
+    // очистка кэша
+    static void invalidateAll() {
+        final Cache<String, Entry> cache = PageCache.cache;
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    // статистика кэша
+    static EntityCache.Stats stats() {
+        final Cache<String, Entry> cache = PageCache.cache;
+        return cache != null
+            ? new EntityCache.Stats(PageCache.NAME, cache.estimatedSize(), cache.stats())
+            : null;
+    }
+}
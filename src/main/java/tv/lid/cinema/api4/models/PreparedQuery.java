@@ -0,0 +1,119 @@
+package tv.lid.cinema.api4.models;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.jooq.impl.DSL.*;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Param;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.ResultQuery;
+import org.jooq.SQLDialect;
+import org.jooq.Select;
+
+// заранее подготовленный параметризованный запрос на чтение: дерево запроса строится и рендерится в SQL
+// один раз для каждого SQL-диалекта, при выполнении на реплике, шарде либо основном сервере передаются только значения аргументов
+// (запрос рендерится тем контекстом, на котором выполняется);
+// готовый SQL-текст jOOQ при каждом выполнении просматривает заново в поиске меток "?" (линейный проход без
+// построения дерева) -- keepStatement(true) не применяется, так как удерживает соединение пула до закрытия запроса,
+// а повторный разбор на сервере снимает кэш подготовленных запросов драйвера (pool.statementCache)
+final class PreparedQuery {
+    // базовое значение параметров-меток, по которым определяется порядок аргументов в SQL
+    private static final int MARKER = 0x7E570000;
+
+    // построитель шаблона запроса
+    @FunctionalInterface
+    static interface Template {
+        Select<?> build(DSLContext dsl);
+    }
+
+    // отрендеренный запрос
+    private static final class Rendered {
+        final String     sql;    // SQL-текст с позиционными параметрами
+        final int[]      order;  // номер аргумента для каждого параметра SQL
+        final Field<?>[] fields; // столбцы результата
+
+        Rendered(final String sql, final int[] order, final Field<?>[] fields) {
+            this.sql    = sql;
+            this.order  = order;
+            this.fields = fields;
+        }
+    }
+
+    // шаблон запроса
+    private final Template template;
+
+    // отрендеренные запросы по диалектам (строятся при первом выполнении на узле с данным диалектом)
+    private final ConcurrentMap<SQLDialect, Rendered> rendered = new ConcurrentHashMap<>();
+
+    // конструктор
+    PreparedQuery(final Template template) {
+        this.template = template;
+    }
+
+    // параметр шаблона, принимающий аргумент с заданным номером
+    static Param<Integer> arg(final int index) {
+        return val(PreparedQuery.MARKER + index);
+    }
+
+    // выполнение запроса со списком записей в результате
+    Result<Record> fetch(final Object... args) {
+        return this.query(CommonModel.reader(), args).fetch();
+    }
+
+    // выполнение запроса с одной записью в результате, null если записей нет
+    Record fetchOne(final Object... args) {
+        return this.query(CommonModel.reader(), args).fetchOne();
+    }
+
+    // выполнение запроса на заданном подключении (шарде) со списком записей в результате
+    Result<Record> fetchFrom(final DSLContext dsl, final Object... args) {
+        return this.query(dsl, args).fetch();
+    }
+
+    // выполнение запроса на заданном подключении (шарде) с одной записью в результате, null если записей нет
+    Record fetchOneFrom(final DSLContext dsl, final Object... args) {
+        return this.query(dsl, args).fetchOne();
+    }
+
+    // запрос по готовому SQL-тексту с заданными значениями аргументов
+    private ResultQuery<Record> query(final DSLContext dsl, final Object[] args) {
+        final Rendered rendered = this.rendered(dsl);
+
+        final Object[] binds = new Object[rendered.order.length];
+        for (int i = 0; i < binds.length; i++) {
+            binds[i] = args[rendered.order[i]];
+        }
+
+        return dsl
+            .resultQuery(rendered.sql, binds)
+            .coerce(rendered.fields);
+    }
+
+    // отрендеренный запрос для диалекта заданного DSLContext
+    private Rendered rendered(final DSLContext dsl) {
+        Rendered rendered = this.rendered.get(dsl.dialect());
+
+        if (rendered == null) {
+            final Select<?>    query  = this.template.build(dsl);
+            final List<Object> values = dsl.extractBindValues(query);
+
+            // порядок параметров в SQL зависит от диалекта, поэтому определяется по меткам
+            final int[] order = new int[values.size()];
+            for (int i = 0; i < order.length; i++) {
+                final Object value = values.get(i);
+                if (!(value instanceof Integer) || (Integer) value < PreparedQuery.MARKER) {
+                    throw new IllegalStateException();
+                }
+                order[i] = (Integer) value - PreparedQuery.MARKER;
+            }
+
+            rendered = new Rendered(dsl.render(query), order, query.getSelect().toArray(new Field<?>[0]));
+            this.rendered.put(dsl.dialect(), rendered);
+        }
+        return rendered;
+    }
+}
@@ -0,0 +1,150 @@
+package tv.lid.cinema.api4.models;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jooq.DSLContext;
+
+// распределение чтения между репликами: запросы на чтение уходят на доступные реплики по кругу,
+// запись, DDL и чтение клиента, недавно выполнившего запись, -- на основной сервер
+public final class ReadRouting {
+    // реплика для чтения
+    private static final class Replica {
+        final DSLContext dsl;            // контекст подключения к реплике
+        volatile boolean healthy = true; // результат последней проверки
+
+        Replica(final DSLContext dsl) {
+            this.dsl = dsl;
+        }
+    }
+
+    // реплики (пустой массив -- все запросы идут на основной сервер)
+    private static volatile Replica[] replicas = new Replica[0];
+
+    // максимальное отставание реплик, мс
+    private static volatile long lag = 0;
+
+    // номер следующей реплики при распределении по кругу
+    private static final AtomicInteger next = new AtomicInteger();
+
+    // признак чтения с основного сервера в текущем потоке
+    private static final ThreadLocal<Boolean> pinned = new ThreadLocal<>();
+
+    // поток проверки доступности реплик
+    private static ScheduledExecutorService checker = null;
+
+    // конструктор
+    private ReadRouting() {}
+
+    // настройка реплик: максимальное отставание и интервал проверки доступности, мс
+    public static synchronized void configure(final List<DSLContext> dsls, final long lag, final long interval) {
+        ReadRouting.shutdown();
+
+        final Replica[] replicas = new Replica[dsls.size()];
+        for (int i = 0; i < replicas.length; i++) {
+            replicas[i] = new Replica(dsls.get(i));
+        }
+
+        ReadRouting.lag      = replicas.length > 0 ? Math.max(lag, 0) : 0;
+        ReadRouting.replicas = replicas;
+
+        if (replicas.length > 0) {
+            ReadRouting.checker = Executors.newSingleThreadScheduledExecutor(task -> {
+                final Thread thread = new Thread(task, "api4-replica-check");
+                thread.setDaemon(true);
+                return thread;
+            });
+            ReadRouting.checker.scheduleWithFixedDelay(ReadRouting::check, interval, Math.max(interval, 1), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // отключение реплик
+    public static synchronized void shutdown() {
+        if (ReadRouting.checker != null) {
+            ReadRouting.checker.shutdownNow();
+            ReadRouting.checker = null;
+        }
+        ReadRouting.replicas = new Replica[0];
+        ReadRouting.lag      = 0;
+    }
+
+    // реплики настроены
+    public static boolean enabled() {
+        return ReadRouting.replicas.length > 0;
+    }
+
+    // максимальное отставание реплик, мс (0 -- реплик нет)
+    public static long lag() {
+        return ReadRouting.lag;
+    }
+
+    // количество доступных реплик
+    public static long healthy() {
+        long count = 0;
+        for (final Replica replica : ReadRouting.replicas) {
+            if (replica.healthy) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // общее количество реплик
+    public static long total() {
+        return ReadRouting.replicas.length;
+    }
+
+    // чтение в текущем потоке идет с основного сервера
+    public static boolean pinned() {
+        return ReadRouting.pinned.get() == Boolean.TRUE;
+    }
+
+    // закрепление чтения в текущем потоке за основным сервером, возвращает прежнее значение
+    public static boolean pin(final boolean value) {
+        final boolean prev = ReadRouting.pinned();
+        if (value) {
+            ReadRouting.pinned.set(Boolean.TRUE);
+        } else {
+            ReadRouting.pinned.remove();
+        }
+        return prev;
+    }
+
+    // данные, прочитанные сейчас, можно кэшировать: после последней записи прошло больше времени,
+    // чем максимальное отставание реплик, либо чтение идет с основного сервера
+    static boolean settled(final long written) {
+        final long lag = ReadRouting.lag;
+        return lag == 0 || ReadRouting.pinned() || System.currentTimeMillis() - written >= lag;
+    }
+
+    // контекст для чтения: доступная реплика, либо основной сервер
+    static DSLContext reader(final DSLContext primary) {
+        final Replica[] replicas = ReadRouting.replicas;
+        if (replicas.length == 0 || ReadRouting.pinned()) {
+            return primary;
+        }
+
+        for (int i = 0; i < replicas.length; i++) {
+            final Replica replica = replicas[Math.floorMod(ReadRouting.next.getAndIncrement(), replicas.length)];
+            if (replica.healthy) {
+                return replica.dsl;
+            }
+        }
+        return primary;
+    }
+
+    // проверка доступности реплик
+    private static void check() {
+        for (final Replica replica : ReadRouting.replicas) {
+            try {
+                replica.dsl.selectOne().fetch();
+                replica.healthy = true;
+            } catch (Exception exc) {
+                replica.healthy = false;
+            }
+        }
+    }
+}
@@ -2,15 +2,39 @@ package tv.lid.cinema.api4.models;
 
 import java.beans.ConstructorProperties;
 import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
-import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
 
 import static org.jooq.impl.DSL.*;
+import org.jooq.Condition;
+import org.jooq.Constraint;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.InsertValuesStep3;
 import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.SQLDialect;
+import org.jooq.SelectField;
 import org.jooq.Table;
+import org.jooq.exception.DataAccessException;
+import org.jooq.exception.SQLStateClass;
+import org.jooq.impl.DSL;
 import org.jooq.impl.SQLDataType;
 
 // класс модели киносеанса
@@ -19,6 +43,57 @@ public class ScheduleModel extends CommonModel {
     // имя SQL-таблицы с сеансами
     private static final Table<Record> TABLE_SCHEDULES = table(name("api4_schedules"));
 
+    // типизированные столбцы таблицы с сеансами
+    private static final Field<Integer>       ID         = field(name("id"),         int.class);
+    private static final Field<Integer>       MOVIE_ID   = field(name("movie_id"),   int.class);
+    private static final Field<LocalDateTime> DATE_TIME  = field(name("date_time"),  LocalDateTime.class);
+    private static final Field<Byte>          AUDITORIUM = field(name("auditorium"), byte.class);
+
+    // имена индексов для постраничного вывода по фильму и для выборки по интервалу времени
+    private static final String INDEX_MOVIE_DATE_TIME_ID = "api4_schedules_movie_id_date_time_id",
+                                INDEX_DATE_TIME_ID       = "api4_schedules_date_time_id";
+
+    // порядок сеансов по времени начала (строковое представление упорядочено так же, как время)
+    private static final Comparator<Showing> ORDER_STARTS_AT = Comparator
+        .<Showing, String>comparing(schedule -> schedule.dateAndTime)
+        .thenComparingInt(schedule -> schedule.id);
+
+    // имя временного столбца при переводе date_time в TIMESTAMP
+    private static final String COLUMN_DATE_TIME_NEW = "date_time_ts";
+
+    // формат строкового date_time для to_timestamp в PostgreSQL
+    private static final String FORMAT_POSTGRES = "YYYY-MM-DD HH24:MI";
+
+    // форматы даты и времени начала сеанса
+    private static final DateTimeFormatter FORMAT_INPUT   = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm[:ss]"),
+                                           FORMAT_MINUTES = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm"),
+                                           FORMAT_SECONDS = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // кэш количества записей по идентификатору фильма для стратегии CACHED
+    private static final CountCache COUNTS = new CountCache();
+
+    // кэш записей по идентификатору
+    private static final EntityCache<ScheduleModel> CACHE = new EntityCache<>(ScheduleModel.TABLE_SCHEDULES.getName());
+
+    // версии списков сеансов по идентификатору фильма для условных запросов
+    private static final Versions VERSIONS = new Versions("s");
+
+    // подготовленные запросы горячих путей: SQL рендерится один раз, при выполнении передаются только аргументы
+    private static final PreparedQuery QUERY_FIND = new PreparedQuery(dsl -> dsl
+        .select(ScheduleModel.ID, ScheduleModel.MOVIE_ID, ScheduleModel.DATE_TIME, ScheduleModel.AUDITORIUM)
+        .from(ScheduleModel.TABLE_SCHEDULES)
+        .where(ScheduleModel.ID.equal(PreparedQuery.arg(0)))
+    );
+
+    private static final PreparedQuery QUERY_COUNT = new PreparedQuery(dsl -> dsl
+        .selectCount()
+        .from(ScheduleModel.TABLE_SCHEDULES)
+        .where(ScheduleModel.MOVIE_ID.equal(PreparedQuery.arg(0)))
+    );
+
+    private static final PreparedQuery QUERY_PAGE       = new PreparedQuery(ScheduleModel.page(false)),
+                                       QUERY_PAGE_TOTAL = new PreparedQuery(ScheduleModel.page(true));
+
     // идентификатор фильма
     @JsonProperty(value = "movieId", required = true)
     public final int movieId;
@@ -56,26 +131,202 @@ public class ScheduleModel extends CommonModel {
         this(0, movieId, dateAndTime, auditorium);
     }
 
-    // создание таблицы в БД
+    // сеанс пересекается с другим сеансом в том же зале
+    public static final class OverlapException extends RuntimeException {}
+
+    // сеанс переносится на фильм, сеансы которого хранятся на другом шарде
+    public static final class CrossShardException extends RuntimeException {}
+
+    // итог сохранения сеанса пакета: созданная запись либо причина отказа
+    public static final class Outcome {
+        // причины отказа
+        public static enum Rejection {
+            OVERLAP,        // сеанс пересекается с другим сеансом в том же зале
+            MOVIE_NOT_FOUND // фильм сеанса не найден
+        }
+
+        // отказы
+        static final Outcome OVERLAP         = new Outcome(null, Rejection.OVERLAP),
+                             MOVIE_NOT_FOUND = new Outcome(null, Rejection.MOVIE_NOT_FOUND);
+
+        public final ScheduleModel saved;     // созданная запись, null при отказе
+        public final Rejection     rejection; // причина отказа, null если сеанс создан
+
+        Outcome(final ScheduleModel saved, final Rejection rejection) {
+            this.saved     = saved;
+            this.rejection = rejection;
+        }
+    }
+
+    // сеанс в выборке по всем фильмам: в отличие от списка сеансов фильма, идентификатор фильма выводится
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static final class Showing extends ScheduleModel {
+        // конструктор
+        public Showing(
+            final int    id,
+            final int    movieId,
+            final String dateAndTime,
+            final byte   auditorium
+        ) {
+            super(id, movieId, dateAndTime, auditorium);
+        }
+    }
+
+    // создание таблицы в БД на каждом шарде
     public static void createTable() throws SQLException {
-        CommonModel.dslContext
-            .createTableIfNotExists​(ScheduleModel.TABLE_SCHEDULES)
-            .column("id",         SQLDataType.INTEGER.identity(true).nullable(false))
-            .column("movie_id",   SQLDataType.INTEGER.nullable(false))
-            .column("date_time",  SQLDataType.VARCHAR(50).nullable(false))
-            .column("auditorium", SQLDataType.TINYINT.nullable(false))
-            .constraints(
-                primaryKey("id"),
-                foreignKey("movie_id").references(MovieModel.tableName(), "id").onDeleteCascade()
-            )
+        // внешний ключ на фильм возможен, только если сеансы хранятся рядом с фильмами
+        final List<Constraint> constraints = new ArrayList<>();
+        constraints.add(primaryKey("id"));
+        if (!Shards.enabled()) {
+            constraints.add(foreignKey("movie_id").references(MovieModel.tableName(), "id").onDeleteCascade());
+        }
+
+        for (int shard = 0; shard < Shards.count(); shard++) {
+            Shards.writer(shard)
+                .createTableIfNotExists​(ScheduleModel.TABLE_SCHEDULES)
+                .column("id",         SQLDataType.INTEGER.identity(true).nullable(false))
+                .column("movie_id",   SQLDataType.INTEGER.nullable(false))
+                .column("date_time",  SQLDataType.LOCALDATETIME.nullable(false))
+                .column("auditorium", SQLDataType.TINYINT.nullable(false))
+                .constraints(constraints.toArray(new Constraint[0]))
+                .execute();
+        }
+    }
+
+    // создание индексов таблицы в БД на каждом шарде
+    public static void createIndexes() throws SQLException {
+        // индекс для выборки сеансов фильма и постраничного вывода по (date_time, id)
+        for (int shard = 0; shard < Shards.count(); shard++) {
+            Shards.writer(shard)
+                .createIndexIfNotExists(ScheduleModel.INDEX_MOVIE_DATE_TIME_ID)
+                .on(
+                    ScheduleModel.TABLE_SCHEDULES,
+                    ScheduleModel.MOVIE_ID,
+                    ScheduleModel.DATE_TIME,
+                    ScheduleModel.ID
+                )
+                .execute();
+
+            // индекс для выборки сеансов всех фильмов по интервалу времени в порядке (date_time, id)
+            Shards.writer(shard)
+                .createIndexIfNotExists(ScheduleModel.INDEX_DATE_TIME_ID)
+                .on(
+                    ScheduleModel.TABLE_SCHEDULES,
+                    ScheduleModel.DATE_TIME,
+                    ScheduleModel.ID
+                )
+                .execute();
+        }
+    }
+
+    // перевод столбца date_time из строкового типа в TIMESTAMP на каждом шарде
+    public static void upgradeTable() throws SQLException {
+        for (int shard = 0; shard < Shards.count(); shard++) {
+            ScheduleModel.upgradeTable(Shards.writer(shard));
+        }
+    }
+
+    // перевод столбца date_time из строкового типа в TIMESTAMP с переносом данных одним запросом
+    private static void upgradeTable(final DSLContext dsl) throws SQLException {
+        // текущее описание таблицы в БД
+        final Table<?> meta = dsl
+            .meta()
+            .getTables()
+            .stream()
+            .filter(t -> t.getName().equalsIgnoreCase(ScheduleModel.tableName()))
+            .findFirst()
+            .orElseThrow(SQLException::new);
+
+        final Field<?> column = ScheduleModel.column(meta, "date_time"),
+                       pending = ScheduleModel.column(meta, ScheduleModel.COLUMN_DATE_TIME_NEW);
+
+        // DDL в MySQL фиксируется сразу, поэтому прерванный перевод может оставить промежуточное состояние:
+        // старый столбец уже удален -- перевод завершается переименованием нового
+        if (column == null) {
+            if (pending == null) {
+                throw new SQLException();
+            }
+            ScheduleModel.renameConverted(dsl);
+            return;
+        }
+
+        // столбец уже имеет тип TIMESTAMP
+        if (!column.getDataType().isString()) {
+            return;
+        }
+
+        // старый столбец на месте -- оставшийся новый столбец удаляется, и перевод выполняется заново
+        if (pending != null) {
+            dsl.alterTable(ScheduleModel.TABLE_SCHEDULES)
+                .dropColumn(name(ScheduleModel.COLUMN_DATE_TIME_NEW))
+                .execute();
+        }
+
+        // H2 и MySQL разбирают строку "ГГГГ-ММ-ДД ЧЧ:ММ" приведением типа, PostgreSQL -- только по формату
+        final Field<String>        legacy    = field(name("date_time"), String.class);
+        final Field<LocalDateTime> converted = dsl.dialect().family() == SQLDialect.POSTGRES
+            ? function("to_timestamp", LocalDateTime.class, legacy, inline(ScheduleModel.FORMAT_POSTGRES))
+                .cast(SQLDataType.LOCALDATETIME)
+            : legacy.cast(SQLDataType.LOCALDATETIME);
+
+        dsl.transaction(cfg -> {
+            final DSLContext tx = using(cfg);
+
+            // индексы по старому столбцу пересоздаются после переноса данных
+            tx.dropIndexIfExists(ScheduleModel.INDEX_MOVIE_DATE_TIME_ID)
+                .on(ScheduleModel.TABLE_SCHEDULES)
+                .execute();
+            tx.dropIndexIfExists(ScheduleModel.INDEX_DATE_TIME_ID)
+                .on(ScheduleModel.TABLE_SCHEDULES)
+                .execute();
+
+            tx.alterTable(ScheduleModel.TABLE_SCHEDULES)
+                .addColumn(ScheduleModel.COLUMN_DATE_TIME_NEW, SQLDataType.LOCALDATETIME.nullable(true))
+                .execute();
+
+            tx.update(ScheduleModel.TABLE_SCHEDULES)
+                .set(
+                    field(name(ScheduleModel.COLUMN_DATE_TIME_NEW), LocalDateTime.class),
+                    converted
+                )
+                .execute();
+
+            tx.alterTable(ScheduleModel.TABLE_SCHEDULES)
+                .dropColumn(name("date_time"))
+                .execute();
+
+            ScheduleModel.renameConverted(tx);
+        });
+    }
+
+    // столбец таблицы по имени без учета регистра, null если столбца нет
+    private static Field<?> column(final Table<?> meta, final String name) {
+        return Arrays.stream(meta.fields())
+            .filter(f -> f.getName().equalsIgnoreCase(name))
+            .findFirst()
+            .orElse(null);
+    }
+
+    // переименование заполненного столбца TIMESTAMP в date_time
+    private static void renameConverted(final DSLContext dsl) {
+        dsl.alterTable(ScheduleModel.TABLE_SCHEDULES)
+            .renameColumn(name(ScheduleModel.COLUMN_DATE_TIME_NEW))
+            .to(name("date_time"))
+            .execute();
+
+        dsl.alterTable(ScheduleModel.TABLE_SCHEDULES)
+            .alterColumn(name("date_time"))
+            .setNotNull()
             .execute();
     }
 
-    // удаление таблицы из БД
+    // удаление таблицы из БД на каждом шарде
     public static void dropTable() throws SQLException {
-        CommonModel.dslContext
-            .dropTable(ScheduleModel.TABLE_SCHEDULES)
-            .execute();
+        for (int shard = 0; shard < Shards.count(); shard++) {
+            Shards.writer(shard)
+                .dropTable(ScheduleModel.TABLE_SCHEDULES)
+                .execute();
+        }
     }
 
     // имя таблицы в БД
@@ -83,111 +334,736 @@ public class ScheduleModel extends CommonModel {
         return ScheduleModel.TABLE_SCHEDULES.getName();
     }
 
+    // потоковая выгрузка всех записей через серверный курсор: шарды обходятся по очереди,
+    // в пределах шарда записи идут в порядке идентификаторов
+    public static void export(final CommonModel.Sink<ScheduleModel> sink) throws SQLException {
+        for (int shard = 0; shard < Shards.count(); shard++) {
+            final int number = shard;
+
+            // курсор PostgreSQL работает только внутри транзакции
+            Shards.reader(shard).transaction(cfg -> {
+                try (
+                    org.jooq.Cursor<? extends Record> cursor = using(cfg)
+                        .select(
+                            ScheduleModel.ID,
+                            ScheduleModel.MOVIE_ID,
+                            ScheduleModel.DATE_TIME,
+                            ScheduleModel.AUDITORIUM
+                        )
+                        .from(ScheduleModel.TABLE_SCHEDULES)
+                        .orderBy(ScheduleModel.ID)
+                        .fetchSize(CommonModel.exportFetchSize())
+                        .fetchLazy()
+                ) {
+                    for (final Record record : cursor) {
+                        sink.accept(ScheduleModel.from(record, number));
+                    }
+                }
+            });
+        }
+    }
+
     // подсчет количества записей в БД по заданному идентификатору фильма
     public static int count(final int movieId) throws SQLException {
-        int cnt = CommonModel.dslContext
-            .selectCount()
-            .from(ScheduleModel.TABLE_SCHEDULES)
-            .where(
-                field(name("movie_id"), int.class).equal(movieId)
-            )
-            .fetchOne(0, int.class);
+        int cnt = ScheduleModel.QUERY_COUNT
+            .fetchOneFrom(Shards.reader(Shards.ofMovie(movieId)), movieId)
+            .get(0, int.class);
         return cnt;
     }
 
     // проверка существования в БД записи с заданным идентификатором
     public static boolean exists(final int id) throws SQLException {
-        int cnt = CommonModel.dslContext
-            .selectCount()
-            .from(ScheduleModel.TABLE_SCHEDULES)
-            .where(
-                field(name("id"), int.class).equal(id)
-            )
-            .fetchOne(0, int.class);
-        return cnt != 0;
+        return ScheduleModel.find(id) != null;
     }
 
-    // чтение записи из БД по заданному идентификатору
+    // чтение записи по заданному идентификатору, null если запись не найдена
     public static ScheduleModel find(final int id) throws SQLException {
-        ScheduleModel result = CommonModel.dslContext
-            .select(
-                field(name("id"),         int.class),
-                field(name("movie_id"),   int.class),
-                field(name("date_time"),  String.class),
-                field(name("auditorium"), byte.class)
-            )
-            .from(ScheduleModel.TABLE_SCHEDULES)
-            .where(
-                field(name("id"), int.class).equal(id)
-            )
-            .fetchOne()
-            .into(ScheduleModel.class);
-        return result;
+        return ScheduleModel.CACHE.get(id, ScheduleModel::load);
+    }
 
+    // метка версии списка сеансов заданного фильма
+    public static Versions.Tag listTag(final int movieId) {
+        return ScheduleModel.VERSIONS.tag(movieId);
     }
 
-    // получить список записей из БД в соответствии с заданными параметрами
-    public static List<ScheduleModel> list(
-        final int movieId,
-        final int page,
-        final int numb
+    // асинхронное чтение записи; запись из кэша возвращается без переключения потока
+    public static CompletableFuture<ScheduleModel> findAsync(final int id) {
+        final ScheduleModel cached = ScheduleModel.CACHE.peek(id);
+        return cached != null
+            ? CompletableFuture.completedFuture(cached)
+            : AsyncRepository.supply(() -> ScheduleModel.find(id));
+    }
+
+    // чтение записи из БД по заданному идентификатору в обход кэша
+    private static ScheduleModel load(final int id) throws SQLException {
+        final int    shard  = Shards.ofId(id);
+        final Record record = ScheduleModel.QUERY_FIND.fetchOneFrom(Shards.reader(shard), Shards.local(id));
+        return record != null ? ScheduleModel.from(record, shard) : null;
+    }
+
+    // подсчет количества записей по заданному идентификатору фильма в соответствии со стратегией подсчета
+    public static int total(final int movieId) throws SQLException {
+        switch (CommonModel.countStrategy) {
+            case CACHED:
+                return ScheduleModel.COUNTS.get(movieId, () -> ScheduleModel.count(movieId));
+            default: // статистика СУБД не дает оценки по отдельному фильму, считаем по индексу
+                return ScheduleModel.count(movieId);
+        }
+    }
+
+    // асинхронно получить страницу записей по номеру страницы
+    public static CompletableFuture<Page<ScheduleModel>> listAsync(
+        final int     movieId,
+        final int     page,
+        final int     numb,
+        final boolean withTotal
+    ) {
+        return AsyncRepository.supply(() -> ScheduleModel.list(movieId, page, numb, withTotal));
+    }
+
+    // асинхронно получить страницу записей методом поиска
+    public static CompletableFuture<Page<ScheduleModel>> listAsync(
+        final int     movieId,
+        final Cursor  cursor,
+        final int     numb,
+        final boolean withTotal
+    ) {
+        return AsyncRepository.supply(() -> ScheduleModel.list(movieId, cursor, numb, withTotal));
+    }
+
+    // получить страницу записей из БД по номеру страницы
+    public static Page<ScheduleModel> list(
+        final int     movieId,
+        final int     page,
+        final int     numb,
+        final boolean withTotal
     ) throws SQLException {
-        List<ScheduleModel> result = CommonModel.dslContext
+        // количество записей подсчитывается в том же запросе
+        final boolean window = withTotal && CommonModel.countStrategy == CountStrategy.WINDOW;
+
+        // все сеансы фильма хранятся на одном шарде
+        final int shard = Shards.ofMovie(movieId);
+
+        final Result<Record> result = (window ? ScheduleModel.QUERY_PAGE_TOTAL : ScheduleModel.QUERY_PAGE)
+            .fetchFrom(Shards.reader(shard), movieId, numb + 1, (page - 1) * numb);
+
+        // для страницы за пределами списка оконная функция не возвращает количество
+        final int total = !withTotal ? -1 : !window ? ScheduleModel.total(movieId)
+            : result.isNotEmpty() ? result.get(0).get("total", int.class)
+            : page > 1 ? ScheduleModel.count(movieId) : 0;
+
+        return Page.offset(result.map(record -> ScheduleModel.from(record, shard)), numb, total, page, ScheduleModel::cursor);
+    }
+
+    // шаблон запроса страницы по номеру (аргументы: идентификатор фильма, количество записей, смещение)
+    private static PreparedQuery.Template page(final boolean window) {
+        return dsl -> {
+            final List<SelectField<?>> columns = new ArrayList<>(Arrays.asList(
+                ScheduleModel.ID,
+                ScheduleModel.MOVIE_ID,
+                ScheduleModel.DATE_TIME,
+                ScheduleModel.AUDITORIUM
+            ));
+            if (window) {
+                columns.add(DSL.count().over().as("total"));
+            }
+
+            return dsl
+                .select(columns)
+                .from(ScheduleModel.TABLE_SCHEDULES)
+                .where(
+                    ScheduleModel.MOVIE_ID.equal(PreparedQuery.arg(0))
+                )
+                .orderBy(
+                    ScheduleModel.DATE_TIME.desc(),
+                    ScheduleModel.ID.desc()
+                )
+                .limit(PreparedQuery.arg(1))
+                .offset(PreparedQuery.arg(2));
+        };
+    }
+
+    // получить страницу записей из БД методом поиска от заданного курсора
+    public static Page<ScheduleModel> list(
+        final int     movieId,
+        final Cursor  cursor,
+        final int     numb,
+        final boolean withTotal
+    ) throws SQLException {
+        // значение ключа сортировки граничной записи
+        final LocalDateTime key = ScheduleModel.parse(cursor.key);
+        if (key == null) {
+            throw new IllegalArgumentException();
+        }
+
+        // все сеансы фильма хранятся на одном шарде, порядок локальных идентификаторов совпадает с глобальным
+        final int shard = Shards.ofMovie(movieId);
+        final int local = Shards.local(cursor.id);
+
+        final List<ScheduleModel> rows = Shards.reader(shard)
             .select(
-                field(name("id"),         int.class),
-                field(name("movie_id"),   int.class),
-                field(name("date_time"),  String.class),
-                field(name("auditorium"), byte.class)
+                ScheduleModel.ID,
+                ScheduleModel.MOVIE_ID,
+                ScheduleModel.DATE_TIME,
+                ScheduleModel.AUDITORIUM
             )
             .from(ScheduleModel.TABLE_SCHEDULES)
             .where(
-                field(name("movie_id"), int.class).equal(movieId)
+                ScheduleModel.MOVIE_ID.equal(movieId)
+            )
+            .and(
+                cursor.forward
+                    ? row(ScheduleModel.DATE_TIME, ScheduleModel.ID).lessThan(key, local)
+                    : row(ScheduleModel.DATE_TIME, ScheduleModel.ID).greaterThan(key, local)
             )
             .orderBy(
-                field(name("date_time"), String.class).desc()
+                cursor.forward ? ScheduleModel.DATE_TIME.desc() : ScheduleModel.DATE_TIME.asc(),
+                cursor.forward ? ScheduleModel.ID.desc()        : ScheduleModel.ID.asc()
             )
-            .limit(numb)
-            .offset((page - 1) * numb)
-            .fetchInto(ScheduleModel.class);
-        return result;
+            .limit(numb + 1)
+            .fetch(record -> ScheduleModel.from(record, shard));
+
+        // при поиске оконная функция посчитала бы только отфильтрованные записи
+        final int total = withTotal ? ScheduleModel.total(movieId) : -1;
+
+        return Page.seek(rows, numb, total, cursor.forward, ScheduleModel::cursor);
+    }
+
+    // построение индекса занятости залов по всем записям в БД
+    public static void indexAuditoriums() throws SQLException {
+        final Map<Integer, Short> durations = new HashMap<>();
+        MovieModel.export(movie -> durations.put(movie.id, movie.duration));
+
+        final List<AuditoriumIndex.Slot> slots = new ArrayList<>();
+        ScheduleModel.export(schedule -> {
+            final Short         duration = durations.get(schedule.movieId);
+            final LocalDateTime start    = schedule.startsAt();
+            if (duration != null) {
+                slots.add(new AuditoriumIndex.Slot(
+                    schedule.id,
+                    schedule.movieId,
+                    schedule.auditorium,
+                    start,
+                    start.plusMinutes(duration)
+                ));
+            }
+        });
+
+        AuditoriumIndex.rebuild(slots);
+    }
+
+    // асинхронно получить страницу сеансов всех фильмов в интервале времени
+    public static CompletableFuture<Page<Showing>> rangeAsync(
+        final LocalDateTime from,
+        final LocalDateTime to,
+        final byte          auditorium,
+        final Cursor        cursor,
+        final int           numb,
+        final boolean       withTotal
+    ) {
+        return AsyncRepository.supply(() -> ScheduleModel.range(from, to, auditorium, cursor, numb, withTotal));
+    }
+
+    // получить страницу сеансов всех фильмов с началом в интервале [from, to) в порядке (date_time, id)
+    // методом поиска от заданного курсора (null -- с начала интервала); auditorium 0 -- все залы;
+    // каждый шард отдает до numb + 1 записей в порядке обхода, выборки сливаются
+    public static Page<Showing> range(
+        final LocalDateTime from,
+        final LocalDateTime to,
+        final byte          auditorium,
+        final Cursor        cursor,
+        final int           numb,
+        final boolean       withTotal
+    ) throws SQLException {
+        final boolean forward = cursor == null || cursor.forward;
+
+        // значение ключа сортировки граничной записи
+        final LocalDateTime key = cursor != null ? ScheduleModel.parse(cursor.key) : null;
+        if (cursor != null && key == null) {
+            throw new IllegalArgumentException();
+        }
+
+        Condition window = ScheduleModel.DATE_TIME.greaterOrEqual(from).and(ScheduleModel.DATE_TIME.lessThan(to));
+        if (auditorium != 0) {
+            window = window.and(ScheduleModel.AUDITORIUM.equal(auditorium));
+        }
+
+        final List<Showing> rows  = new ArrayList<>();
+        int                 total = withTotal ? 0 : -1;
+
+        for (int shard = 0; shard < Shards.count(); shard++) {
+            final DSLContext dsl    = Shards.reader(shard);
+            final int        number = shard;
+
+            if (withTotal) {
+                total += dsl.fetchCount(ScheduleModel.TABLE_SCHEDULES, window);
+            }
+
+            final Condition condition = cursor == null ? window : window.and(
+                forward
+                    ? row(ScheduleModel.DATE_TIME, ScheduleModel.ID).greaterThan(key, Shards.after(cursor.id, shard))
+                    : row(ScheduleModel.DATE_TIME, ScheduleModel.ID).lessThan(key, Shards.before(cursor.id, shard))
+            );
+
+            rows.addAll(dsl
+                .select(
+                    ScheduleModel.ID,
+                    ScheduleModel.MOVIE_ID,
+                    ScheduleModel.DATE_TIME,
+                    ScheduleModel.AUDITORIUM
+                )
+                .from(ScheduleModel.TABLE_SCHEDULES)
+                .where(condition)
+                .orderBy(
+                    forward ? ScheduleModel.DATE_TIME.asc() : ScheduleModel.DATE_TIME.desc(),
+                    forward ? ScheduleModel.ID.asc()        : ScheduleModel.ID.desc()
+                )
+                .limit(numb + 1)
+                .fetch(record -> ScheduleModel.showing(record, number))
+            );
+        }
+
+        // слияние выборок шардов в общем порядке обхода
+        if (Shards.count() > 1) {
+            rows.sort(forward ? ScheduleModel.ORDER_STARTS_AT : ScheduleModel.ORDER_STARTS_AT.reversed());
+            while (rows.size() > numb + 1) {
+                rows.remove(rows.size() - 1);
+            }
+        }
+
+        final Page<Showing> page = Page.seek(rows, numb, total, forward, ScheduleModel::cursor);
+
+        // первая страница интервала не имеет предыдущей
+        return cursor != null ? page : new Page<>(page.list, page.total, page.next, null);
+    }
+
+    // сброс кэшированных данных по сеансам удаленного фильма
+    static void invalidateMovie(final int movieId) {
+        ScheduleModel.COUNTS.invalidate(movieId);
+        ScheduleModel.CACHE.invalidateIf(schedule -> schedule.movieId == movieId);
+        ScheduleModel.VERSIONS.drop(movieId);
     }
 
-    // удаление записи из БД по заданному идентификатору
-    public static void kill(final int id) throws SQLException {
-        CommonModel.dslContext
+    // удаление сеансов заданного фильма (при шардировании внешнего ключа с каскадным удалением нет)
+    static void killMovie(final int movieId) throws SQLException {
+        Shards.writer(Shards.ofMovie(movieId))
             .deleteFrom(ScheduleModel.TABLE_SCHEDULES)
             .where(
-                field(name("id"), int.class).equal(id)
+                ScheduleModel.MOVIE_ID.equal(movieId)
             )
             .execute();
     }
 
-    // сохранение данной записи в БД
-    public void save() throws SQLException {
-        if (this.id == 0) { // создание новой
-            CommonModel.dslContext
-                .insertInto(
-                    ScheduleModel.TABLE_SCHEDULES,
-                    field(name("movie_id"),   int.class),
-                    field(name("date_time"),  String.class),
-                    field(name("auditorium"), byte.class)
-                )
-                .values(
-                    this.movieId,
-                    this.dateAndTime,
-                    this.auditorium
-                )
-                .execute();
-        } else { // изменение ранее созданной
-            CommonModel.dslContext
-                .update(ScheduleModel.TABLE_SCHEDULES)
-                .set(field(name("movie_id"),   int.class),    this.movieId)
-                .set(field(name("date_time"),  String.class), this.dateAndTime)
-                .set(field(name("auditorium"), byte.class),   this.auditorium)
+    // создание экземпляра из записи выборки (id, movie_id, date_time, auditorium) основного сервера либо шарда №0
+    // по позициям столбцов, без рефлексии
+    public static ScheduleModel from(final Record record) {
+        return ScheduleModel.from(record, 0);
+    }
+
+    // создание экземпляра из записи выборки заданного шарда с переводом идентификатора в глобальный
+    private static ScheduleModel from(final Record record, final int shard) {
+        return new ScheduleModel(
+            Shards.global(record.get(0, int.class), shard),
+            record.get(1, int.class),
+            ScheduleModel.format(record.get(2, LocalDateTime.class)),
+            record.get(3, byte.class)
+        );
+    }
+
+    // создание сеанса выборки по всем фильмам из записи заданного шарда
+    private static Showing showing(final Record record, final int shard) {
+        return new Showing(
+            Shards.global(record.get(0, int.class), shard),
+            record.get(1, int.class),
+            ScheduleModel.format(record.get(2, LocalDateTime.class)),
+            record.get(3, byte.class)
+        );
+    }
+
+    // разбор даты и времени начала сеанса, null при некорректном значении
+    public static LocalDateTime parse(final String dateAndTime) {
+        if (dateAndTime == null) {
+            return null;
+        }
+
+        try {
+            return LocalDateTime.parse(dateAndTime.trim().replace('T', ' '), ScheduleModel.FORMAT_INPUT);
+        } catch (DateTimeParseException exc) {
+            return null;
+        }
+    }
+
+    // строковое представление даты и времени начала сеанса
+    public static String format(final LocalDateTime dateTime) {
+        return dateTime.getSecond() == 0 && dateTime.getNano() == 0
+            ? dateTime.format(ScheduleModel.FORMAT_MINUTES)
+            : dateTime.format(ScheduleModel.FORMAT_SECONDS);
+    }
+
+    // дата и время начала данного сеанса, null при некорректном значении
+    public LocalDateTime startsAt() {
+        return ScheduleModel.parse(this.dateAndTime);
+    }
+
+    // курсор, указывающий на данную запись
+    public Cursor cursor(final boolean forward) {
+        return new Cursor(forward, this.dateAndTime, this.id);
+    }
+
+    // удаление записи из БД по заданному идентификатору, false если запись не найдена
+    public static boolean kill(final int id) throws SQLException {
+        // зал сеанса блокируется, поэтому одновременное изменение не переносит сеанс на другой фильм
+        // между определением фильма и удалением
+        final Supplier<byte[]> auditoriums = () -> {
+            final Byte auditorium = AuditoriumIndex.auditorium(id);
+            return auditorium != null ? new byte[] { auditorium } : new byte[0];
+        };
+
+        return AuditoriumIndex.locked(auditoriums, () -> {
+            final Integer movieId = ScheduleModel.movieOf(id);
+
+            final int affected = Shards.writer(Shards.ofId(id))
+                .deleteFrom(ScheduleModel.TABLE_SCHEDULES)
                 .where(
-                    field(name("id"), int.class).equal(this.id)
+                    ScheduleModel.ID.equal(Shards.local(id))
                 )
                 .execute();
+
+            if (affected > 0) {
+                ScheduleModel.invalidateCounts(movieId);
+                ScheduleModel.CACHE.invalidate(id);
+                AuditoriumIndex.remove(id);
+            }
+
+            return affected > 0;
+        });
+    }
+
+    // фильм сеанса по индексу залов либо по записи в кэше, null если сеанса нет ни там, ни там
+    private static Integer movieOf(final int id) {
+        final Integer indexed = AuditoriumIndex.movieId(id);
+        if (indexed != null) {
+            return indexed;
+        }
+
+        final ScheduleModel cached = ScheduleModel.CACHE.peek(id);
+        return cached != null ? cached.movieId : null;
+    }
+
+    // сброс количества и версии сеансов заданного фильма; фильм неизвестен (null) -- сброс по всем фильмам
+    private static void invalidateCounts(final Integer movieId) {
+        if (movieId != null) {
+            ScheduleModel.COUNTS.invalidate(movieId);
+            ScheduleModel.VERSIONS.bump(movieId);
+        } else {
+            ScheduleModel.COUNTS.invalidateAll();
+            ScheduleModel.VERSIONS.bumpAll();
+        }
+    }
+
+    // пакетное создание записей, возвращает итог по каждому сеансу в исходном порядке: созданную запись, либо
+    // отказ -- сеанс пересекается в том же зале с существующими либо с предыдущими сеансами пакета, либо его фильм
+    // не найден
+    public static List<Outcome> saveAll(final List<ScheduleModel> schedules) throws SQLException {
+        final Set<Byte> halls = new HashSet<>();
+        for (final ScheduleModel schedule : schedules) {
+            halls.add(schedule.auditorium);
+        }
+
+        final byte[] auditoriums = new byte[halls.size()];
+        int          count       = 0;
+        for (final Byte hall : halls) {
+            auditoriums[count++] = hall;
+        }
+
+        // проверка пересечений и запись под блокировками всех затронутых залов
+        return AuditoriumIndex.locked(auditoriums, () -> {
+            // интервалы сеансов по длительностям фильмов; фильмы изменяются под блокировками всех залов,
+            // поэтому длительности не устаревают до записи сеансов
+            final Map<Integer, MovieModel>   movies = new HashMap<>();
+            final List<AuditoriumIndex.Slot> slots  = new ArrayList<>(schedules.size());
+
+            for (final ScheduleModel schedule : schedules) {
+                if (!movies.containsKey(schedule.movieId)) {
+                    movies.put(schedule.movieId, MovieModel.find(schedule.movieId));
+                }
+
+                final MovieModel    movie = movies.get(schedule.movieId);
+                final LocalDateTime start = schedule.startsAt();
+
+                slots.add(movie != null
+                    ? new AuditoriumIndex.Slot(0, schedule.movieId, schedule.auditorium, start, start.plusMinutes(movie.duration))
+                    : null
+                );
+            }
+
+            final Map<Byte, AuditoriumIndex.Hall> pending   = new HashMap<>();
+            final List<ScheduleModel>             accepted  = new ArrayList<>();
+            final List<Integer>                   positions = new ArrayList<>();
+            final List<Outcome>                   result    = new ArrayList<>(
+                Collections.nCopies(schedules.size(), Outcome.MOVIE_NOT_FOUND)
+            );
+
+            for (int i = 0; i < slots.size(); i++) {
+                final AuditoriumIndex.Slot slot = slots.get(i);
+                if (slot == null) {
+                    continue;
+                }
+
+                final AuditoriumIndex.Hall hall = pending.computeIfAbsent(slot.auditorium, key -> new AuditoriumIndex.Hall());
+                if (
+                    AuditoriumIndex.overlaps(slot.auditorium, slot.start, slot.end, 0) ||
+                    hall.overlaps(slot.start, slot.end, 0)
+                ) {
+                    result.set(i, Outcome.OVERLAP);
+                    continue;
+                }
+
+                // позиция в пакете -- временный идентификатор до вставки
+                hall.add(new AuditoriumIndex.Slot(i + 1, slot.movieId, slot.auditorium, slot.start, slot.end));
+                accepted.add(schedules.get(i));
+                positions.add(i);
+            }
+
+            List<ScheduleModel> inserted;
+            try {
+                inserted = ScheduleModel.insertAll(accepted);
+            } catch (DataAccessException exc) {
+                if (exc.sqlStateClass() != SQLStateClass.C23_INTEGRITY_CONSTRAINT_VIOLATION) {
+                    throw exc;
+                }
+
+                // фильм удален после проверки -- выявляется внешним ключом; он есть только без шардирования,
+                // когда пакет вставляется одной транзакцией и откатывается целиком, поэтому сеансы удаленных
+                // фильмов исключаются, а остальные вставляются повторно
+                final Set<Integer> ids = new HashSet<>();
+                for (final ScheduleModel schedule : accepted) {
+                    ids.add(schedule.movieId);
+                }
+
+                final boolean      prev = ReadRouting.pin(true);
+                final Set<Integer> alive;
+                try {
+                    alive = MovieModel.existing(ids);
+                } finally {
+                    ReadRouting.pin(prev);
+                }
+
+                for (int i = accepted.size() - 1; i >= 0; i--) {
+                    if (!alive.contains(accepted.get(i).movieId)) {
+                        accepted.remove(i);
+                        positions.remove(i);
+                    }
+                }
+                inserted = ScheduleModel.insertAll(accepted);
+            }
+
+            for (int i = 0; i < inserted.size(); i++) {
+                final ScheduleModel        saved = inserted.get(i);
+                final AuditoriumIndex.Slot slot  = slots.get(positions.get(i));
+
+                result.set(positions.get(i), new Outcome(saved, null));
+                AuditoriumIndex.put(new AuditoriumIndex.Slot(saved.id, slot.movieId, slot.auditorium, slot.start, slot.end));
+            }
+
+            return result;
+        });
+    }
+
+    // пакетная вставка записей в одной транзакции на каждый шард, возвращает созданные записи в исходном порядке;
+    // атомарность между шардами не гарантируется
+    private static List<ScheduleModel> insertAll(final List<ScheduleModel> schedules) throws SQLException {
+        if (schedules.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // раскладываем позиции записей по шардам
+        final List<List<Integer>> positions = new ArrayList<>();
+        for (int shard = 0; shard < Shards.count(); shard++) {
+            positions.add(new ArrayList<>());
+        }
+        for (int i = 0; i < schedules.size(); i++) {
+            positions.get(Shards.ofMovie(schedules.get(i).movieId)).add(i);
+        }
+
+        final ScheduleModel[] saved = new ScheduleModel[schedules.size()];
+
+        try {
+            for (int shard = 0; shard < Shards.count(); shard++) {
+                final List<Integer> indexes = positions.get(shard);
+                final int           number  = shard;
+
+                if (indexes.isEmpty()) {
+                    continue;
+                }
+
+                Shards.writer(shard).transaction(cfg -> {
+                    final DSLContext tx = using(cfg);
+
+                    // многострочные INSERT порциями по INSERT_CHUNK записей
+                    for (int from = 0; from < indexes.size(); from += CommonModel.INSERT_CHUNK) {
+                        final List<Integer> chunk = indexes.subList(from, Math.min(from + CommonModel.INSERT_CHUNK, indexes.size()));
+
+                        InsertValuesStep3<Record, Integer, LocalDateTime, Byte> insert = tx
+                            .insertInto(
+                                ScheduleModel.TABLE_SCHEDULES,
+                                ScheduleModel.MOVIE_ID,
+                                ScheduleModel.DATE_TIME,
+                                ScheduleModel.AUDITORIUM
+                            );
+                        for (final int index : chunk) {
+                            final ScheduleModel schedule = schedules.get(index);
+                            insert = insert.values(schedule.movieId, schedule.startsAt(), schedule.auditorium);
+                        }
+
+                        final List<Integer> ids = CommonModel.insertReturningIds(tx, insert);
+                        if (ids.size() != chunk.size()) {
+                            throw new SQLException();
+                        }
+
+                        for (int i = 0; i < chunk.size(); i++) {
+                            final ScheduleModel schedule = schedules.get(chunk.get(i));
+                            saved[chunk.get(i)] = new ScheduleModel(
+                                Shards.global(ids.get(i), number),
+                                schedule.movieId,
+                                schedule.dateAndTime,
+                                schedule.auditorium
+                            );
+                        }
+                    }
+                });
+            }
+        } finally {
+            // сбрасываем счетчики затронутых фильмов, в том числе при сбое на одном из шардов
+            final Set<Integer> movies = new HashSet<>();
+            for (final ScheduleModel schedule : schedules) {
+                if (movies.add(schedule.movieId)) {
+                    ScheduleModel.COUNTS.invalidate(schedule.movieId);
+                    ScheduleModel.VERSIONS.bump(schedule.movieId);
+                }
+            }
+        }
+
+        return new ArrayList<>(Arrays.asList(saved));
+    }
+
+    // сохранение данной записи в БД, возвращает сохраненную запись или null если она либо фильм не найдены;
+    // сеанс, пересекающийся с другим сеансом в том же зале, не сохраняется -- выбрасывается OverlapException,
+    // перенос сеанса на фильм другого шарда не выполняется -- выбрасывается CrossShardException
+    public ScheduleModel save() throws SQLException {
+        // блокируются залы нового и прежнего интервалов сеанса; прежний зал перечитывается под блокировками,
+        // поэтому сеанс, одновременно перенесенный в другой зал, не остается в индексе без блокировки
+        final Supplier<byte[]> auditoriums = () -> {
+            final Byte previous = AuditoriumIndex.auditorium(this.id);
+            return previous != null
+                ? new byte[] { this.auditorium, previous }
+                : new byte[] { this.auditorium };
         };
+
+        return AuditoriumIndex.locked(auditoriums, () -> {
+            // длительность фильма задает окончание сеанса (при шардировании это и единственная проверка фильма);
+            // фильм изменяется под блокировками всех залов, поэтому длительность не устаревает до записи сеанса
+            final MovieModel movie = MovieModel.find(this.movieId);
+            if (movie == null) {
+                return null;
+            }
+
+            final LocalDateTime start = this.startsAt(),
+                                end   = start.plusMinutes(movie.duration);
+
+            if (AuditoriumIndex.overlaps(this.auditorium, start, end, this.id)) {
+                throw new OverlapException();
+            }
+
+            final ScheduleModel saved;
+            try {
+                saved = this.id == 0 ? this.insert() : this.update();
+            } catch (DataAccessException exc) {
+                // фильм удален после проверки -- выявляется внешним ключом
+                if (exc.sqlStateClass() == SQLStateClass.C23_INTEGRITY_CONSTRAINT_VIOLATION) {
+                    return null;
+                }
+                throw exc;
+            }
+
+            if (saved != null) {
+                AuditoriumIndex.put(new AuditoriumIndex.Slot(saved.id, this.movieId, this.auditorium, start, end));
+            }
+            return saved;
+        });
+    }
+
+    // создание новой записи в БД
+    private ScheduleModel insert() throws SQLException {
+        final int shard = Shards.ofMovie(this.movieId);
+
+        // вставка откатывается, если локальный идентификатор шарда уже не кодируется в глобальный
+        final Integer id = Shards.writer(shard).transactionResult(cfg -> {
+            final DSLContext tx = using(cfg);
+
+            final List<Integer> ids = CommonModel.insertReturningIds(
+                tx,
+                tx
+                    .insertInto(
+                        ScheduleModel.TABLE_SCHEDULES,
+                        ScheduleModel.MOVIE_ID,
+                        ScheduleModel.DATE_TIME,
+                        ScheduleModel.AUDITORIUM
+                    )
+                    .values(
+                        this.movieId,
+                        this.startsAt(),
+                        this.auditorium
+                    )
+            );
+
+            return ids.size() == 1 ? Shards.global(ids.get(0), shard) : null;
+        });
+
+        if (id == null) {
+            throw new SQLException();
+        }
+
+        ScheduleModel.COUNTS.invalidate(this.movieId);
+        ScheduleModel.VERSIONS.bump(this.movieId);
+
+        return new ScheduleModel(
+            id,
+            this.movieId,
+            this.dateAndTime,
+            this.auditorium
+        );
+    }
+
+    // изменение ранее созданной записи в БД
+    private ScheduleModel update() throws SQLException {
+        final int shard = Shards.ofId(this.id);
+
+        // перенос на фильм другого шарда потребовал бы распределенной транзакции и смены идентификатора
+        if (shard != Shards.ofMovie(this.movieId)) {
+            throw new CrossShardException();
+        }
+
+        // прежний фильм сеанса определяется до изменения (вызывается под блокировкой зала сеанса)
+        final Integer previous = ScheduleModel.movieOf(this.id);
+
+        final int affected = Shards.writer(shard)
+            .update(ScheduleModel.TABLE_SCHEDULES)
+            .set(ScheduleModel.MOVIE_ID,   this.movieId)
+            .set(ScheduleModel.DATE_TIME,  this.startsAt())
+            .set(ScheduleModel.AUDITORIUM, this.auditorium)
+            .where(
+                ScheduleModel.ID.equal(Shards.local(this.id))
+            )
+            .execute();
+
+        // сеанс мог быть перенесен с другого фильма -- сбрасываются данные прежнего и нового фильмов
+        ScheduleModel.invalidateCounts(previous);
+        if (previous == null || previous != this.movieId) {
+            ScheduleModel.invalidateCounts(this.movieId);
+        }
+        ScheduleModel.CACHE.invalidate(this.id);
+
+        return affected > 0 ? this : null;
     }
 }
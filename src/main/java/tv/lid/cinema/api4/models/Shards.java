@@ -0,0 +1,86 @@
+package tv.lid.cinema.api4.models;
+
+import java.util.List;
+
+import org.jooq.DSLContext;
+
+// распределение сеансов по шардам: шард определяется хэшем идентификатора фильма, а номер шарда
+// закодирован в идентификаторе сеанса (глобальный идентификатор = локальный * количество шардов + номер шарда)
+public final class Shards {
+    // множители финального перемешивания murmur3 (fmix32)
+    private static final int MIX_1 = 0x85EBCA6B,
+                             MIX_2 = 0xC2B2AE35;
+
+    // подключения к шардам (пустой массив -- шардирование выключено, сеансы хранятся на основном сервере)
+    private static volatile DSLContext[] shards = new DSLContext[0];
+
+    // конструктор
+    private Shards() {}
+
+    // настройка шардов
+    public static synchronized void configure(final List<DSLContext> dsls) {
+        Shards.shards = dsls.toArray(new DSLContext[0]);
+    }
+
+    // шардирование включено
+    public static boolean enabled() {
+        return Shards.shards.length > 0;
+    }
+
+    // количество шардов (без шардирования -- единственный шард на основном сервере)
+    public static int count() {
+        return Math.max(Shards.shards.length, 1);
+    }
+
+    // номер шарда для сеансов заданного фильма: все биты идентификатора перемешиваются,
+    // поэтому и при количестве шардов, равном степени двойки, шард зависит не только от младших битов
+    public static int ofMovie(final int movieId) {
+        int hash = movieId;
+        hash ^= hash >>> 16;
+        hash *= Shards.MIX_1;
+        hash ^= hash >>> 13;
+        hash *= Shards.MIX_2;
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, Shards.count());
+    }
+
+    // номер шарда по глобальному идентификатору сеанса
+    public static int ofId(final int id) {
+        return Math.floorMod(id, Shards.count());
+    }
+
+    // локальный идентификатор сеанса в его шарде
+    public static int local(final int id) {
+        return Math.floorDiv(id, Shards.count());
+    }
+
+    // глобальный идентификатор сеанса по локальному идентификатору и номеру шарда;
+    // ArithmeticException, если локальный идентификатор шарда уже не кодируется в int
+    public static int global(final int local, final int shard) {
+        return Math.toIntExact((long) local * Shards.count() + shard);
+    }
+
+    // граница локальных идентификаторов шарда для условия "глобальный идентификатор больше заданного":
+    // подходят локальные идентификаторы больше возвращаемого значения
+    static int after(final int id, final int shard) {
+        return (int) Math.floorDiv((long) id - shard, Shards.count());
+    }
+
+    // граница локальных идентификаторов шарда для условия "глобальный идентификатор меньше заданного":
+    // подходят локальные идентификаторы меньше возвращаемого значения
+    static int before(final int id, final int shard) {
+        return (int) -Math.floorDiv((long) shard - id, Shards.count());
+    }
+
+    // подключение для записи в заданный шард
+    static DSLContext writer(final int shard) {
+        final DSLContext[] shards = Shards.shards;
+        return shards.length > 0 ? shards[shard] : CommonModel.dslContext;
+    }
+
+    // подключение для чтения из заданного шарда (без шардирования чтение распределяется по репликам)
+    static DSLContext reader(final int shard) {
+        final DSLContext[] shards = Shards.shards;
+        return shards.length > 0 ? shards[shard] : CommonModel.reader();
+    }
+}
@@ -0,0 +1,244 @@
+package tv.lid.cinema.api4.models;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// индекс названий фильмов в памяти: триграммы нормализованного названия и двухсимвольные начала слов;
+// кандидаты ищутся пересечением списков триграмм запроса и проверяются по самому названию, без обращения к БД
+final class TitleIndex {
+    // проиндексированный фильм
+    private static final class Entry {
+        final MovieModel  movie; // сам фильм
+        final String      text;  // нормализованное название с ведущим пробелом
+        final Set<String> grams; // ключи индекса для названия
+
+        Entry(final MovieModel movie, final String text) {
+            this.movie = movie;
+            this.text  = text;
+            this.grams = TitleIndex.grams(text);
+        }
+    }
+
+    // найденный фильм и его ранг (меньше -- выше в выдаче)
+    private static final class Hit {
+        final Entry entry; // проиндексированный фильм
+        final int   rank;  // ранг совпадения
+
+        Hit(final Entry entry, final int rank) {
+            this.entry = entry;
+            this.rank  = rank;
+        }
+    }
+
+    // ранги совпадения
+    private static final int RANK_EXACT  = 0, // название совпадает с запросом
+                             RANK_PREFIX = 1, // название начинается с запроса
+                             RANK_WORD   = 2, // запрос совпадает с началом слова названия
+                             RANK_INNER  = 3; // запрос внутри слова названия
+
+    // порядок выдачи: ранг, длина названия, идентификатор
+    private static final Comparator<Hit> ORDER = Comparator
+        .<Hit>comparingInt(hit -> hit.rank)
+        .thenComparingInt(hit -> hit.entry.text.length())
+        .thenComparingInt(hit -> hit.entry.movie.id);
+
+    // фильмы по идентификатору
+    private static final Map<Integer, Entry> entries = new HashMap<>();
+
+    // идентификаторы фильмов по ключу индекса
+    private static final Map<String, Set<Integer>> postings = new HashMap<>();
+
+    // блокировка: поиск параллельно, изменения по одному
+    private static final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // конструктор
+    private TitleIndex() {}
+
+    // нормализация строки: нижний регистр, ё как е, всё кроме букв и цифр -- одиночные пробелы,
+    // с ведущим пробелом, чтобы триграммы отмечали начала слов
+    static String normalize(final String value) {
+        final StringBuilder text  = new StringBuilder(value.length() + 1);
+        boolean             space = true;
+
+        text.append(' ');
+        for (final char c : value.toLowerCase(Locale.ROOT).toCharArray()) {
+            if (Character.isLetterOrDigit(c)) {
+                text.append(c == 'ё' ? 'е' : c);
+                space = false;
+            } else if (!space) {
+                text.append(' ');
+                space = true;
+            }
+        }
+        if (space && text.length() > 1) {
+            text.setLength(text.length() - 1);
+        }
+        return text.toString();
+    }
+
+    // ключи индекса для нормализованного названия
+    private static Set<String> grams(final String text) {
+        final Set<String> grams = new HashSet<>();
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            grams.add(text.substring(i, i + 3));
+        }
+        // начала слов для однобуквенных запросов
+        for (int i = 0; i + 2 <= text.length(); i++) {
+            if (text.charAt(i) == ' ') {
+                grams.add(text.substring(i, i + 2));
+            }
+        }
+        return grams;
+    }
+
+    // ключи, которые должны присутствовать у подходящего названия
+    private static List<String> required(final String query) {
+        final List<String> keys = new ArrayList<>();
+        if (query.length() >= 4) { // слово из трех и более символов -- триграммы без ведущего пробела
+            for (int i = 1; i + 3 <= query.length(); i++) {
+                keys.add(query.substring(i, i + 3));
+            }
+        } else { // одно- и двухсимвольный запрос -- только начало слова
+            keys.add(query);
+        }
+        return keys;
+    }
+
+    // ранг совпадения названия с запросом, -1 если название не подходит
+    private static int rank(final String text, final String query) {
+        if (text.equals(query)) {
+            return TitleIndex.RANK_EXACT;
+        } else if (text.startsWith(query)) {
+            return TitleIndex.RANK_PREFIX;
+        } else if (text.contains(query)) {
+            return TitleIndex.RANK_WORD;
+        } else if (query.length() >= 4 && text.contains(query.substring(1))) {
+            return TitleIndex.RANK_INNER;
+        }
+        return -1;
+    }
+
+    // полное перестроение индекса по заданным фильмам
+    static void rebuild(final List<MovieModel> movies) {
+        TitleIndex.lock.writeLock().lock();
+        try {
+            TitleIndex.entries.clear();
+            TitleIndex.postings.clear();
+            for (final MovieModel movie : movies) {
+                TitleIndex.add(movie);
+            }
+        } finally {
+            TitleIndex.lock.writeLock().unlock();
+        }
+    }
+
+    // очистка индекса
+    static void clear() {
+        TitleIndex.rebuild(new ArrayList<>());
+    }
+
+    // добавление либо обновление фильма в индексе
+    static void put(final MovieModel movie) {
+        TitleIndex.lock.writeLock().lock();
+        try {
+            TitleIndex.drop(movie.id);
+            TitleIndex.add(movie);
+        } finally {
+            TitleIndex.lock.writeLock().unlock();
+        }
+    }
+
+    // удаление фильма из индекса
+    static void remove(final int id) {
+        TitleIndex.lock.writeLock().lock();
+        try {
+            TitleIndex.drop(id);
+        } finally {
+            TitleIndex.lock.writeLock().unlock();
+        }
+    }
+
+    // поиск фильмов по подстроке названия, не более limit записей в порядке ранга
+    static List<MovieModel> search(final String value, final int limit) {
+        final String query = TitleIndex.normalize(value);
+        if (query.length() < 2) {
+            return new ArrayList<>();
+        }
+
+        final List<Hit> hits = new ArrayList<>();
+
+        TitleIndex.lock.readLock().lock();
+        try {
+            // начинаем с самого короткого списка, остальные проверяем на вхождение
+            final List<Set<Integer>> lists = new ArrayList<>();
+            for (final String key : TitleIndex.required(query)) {
+                final Set<Integer> ids = TitleIndex.postings.get(key);
+                if (ids == null) {
+                    return new ArrayList<>();
+                }
+                lists.add(ids);
+            }
+            lists.sort(Comparator.comparingInt(Set::size));
+
+            for (final Integer id : lists.get(0)) {
+                boolean matches = true;
+                for (int i = 1; i < lists.size() && matches; i++) {
+                    matches = lists.get(i).contains(id);
+                }
+                if (!matches) {
+                    continue;
+                }
+
+                // триграммы могут совпасть в разных местах названия -- проверяем подстроку
+                final Entry entry = TitleIndex.entries.get(id);
+                final int   rank  = TitleIndex.rank(entry.text, query);
+                if (rank >= 0) {
+                    hits.add(new Hit(entry, rank));
+                }
+            }
+        } finally {
+            TitleIndex.lock.readLock().unlock();
+        }
+
+        hits.sort(TitleIndex.ORDER);
+
+        final List<MovieModel> result = new ArrayList<>(Math.min(hits.size(), limit));
+        for (int i = 0; i < hits.size() && i < limit; i++) {
+            result.add(hits.get(i).entry.movie);
+        }
+        return result;
+    }
+
+    // добавление фильма (под блокировкой записи)
+    private static void add(final MovieModel movie) {
+        final Entry entry = new Entry(movie, TitleIndex.normalize(movie.title));
+
+        TitleIndex.entries.put(movie.id, entry);
+        for (final String gram : entry.grams) {
+            TitleIndex.postings.computeIfAbsent(gram, key -> new HashSet<>()).add(movie.id);
+        }
+    }
+
+    // удаление фильма (под блокировкой записи)
+    private static void drop(final int id) {
+        final Entry entry = TitleIndex.entries.remove(id);
+        if (entry == null) {
+            return;
+        }
+
+        for (final String gram : entry.grams) {
+            final Set<Integer> ids = TitleIndex.postings.get(gram);
+            if (ids != null && ids.remove(id) && ids.isEmpty()) {
+                TitleIndex.postings.remove(gram);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package tv.lid.cinema.api4.models;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+// счетчики версий данных таблицы для условных запросов (ETag, Last-Modified);
+// версии хранятся в памяти процесса, поэтому в ETag входит момент запуска
+public final class Versions {
+    // все созданные счетчики, для сброса при повторной инициализации моделей
+    private static final List<Versions> instances = new CopyOnWriteArrayList<>();
+
+    // момент запуска процесса, мс
+    private static final long EPOCH = System.currentTimeMillis();
+
+    // максимальное количество версий по ключам; при переполнении все они сводятся к общей версии
+    private static final int KEYS_LIMIT = 65536;
+
+    // версия и момент изменения
+    private static final class Stamp {
+        final long version;  // номер версии
+        final long modified; // момент изменения, мс
+
+        Stamp(final long version, final long modified) {
+            this.version  = version;
+            this.modified = modified;
+        }
+
+        // более поздняя из двух версий
+        static Stamp later(final Stamp one, final Stamp two) {
+            return one.version >= two.version ? one : two;
+        }
+    }
+
+    // метка версии представления
+    public static final class Tag {
+        public final String etag;         // сильный ETag в кавычках
+        public final long   lastModified; // момент последнего изменения, мс
+
+        Tag(final String etag, final long lastModified) {
+            this.etag         = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    // префикс ETag
+    private final String prefix;
+
+    // версия всей таблицы, меняется при любом изменении; она же -- счетчик, из которого берутся все версии
+    private final AtomicReference<Stamp> table = new AtomicReference<>(new Stamp(0, Versions.EPOCH));
+
+    // версия, меняющаяся при изменении, которое нельзя отнести к конкретному ключу
+    private final AtomicReference<Stamp> all = new AtomicReference<>(new Stamp(0, Versions.EPOCH));
+
+    // версия ключей, которых нет в keys: не меньше последней версии удаленного ключа,
+    // поэтому ETag удаленного ключа не может совпасть с выданным ранее
+    private final AtomicReference<Stamp> floor = new AtomicReference<>(new Stamp(0, Versions.EPOCH));
+
+    // версии по ключам
+    private final ConcurrentMap<Integer, Stamp> keys = new ConcurrentHashMap<>();
+
+    // конструктор
+    Versions(final String prefix) {
+        this.prefix = prefix;
+
+        Versions.instances.add(this);
+    }
+
+    // изменение данных по ключу
+    void bump(final int key) {
+        final Stamp stamp = this.next();
+
+        this.keys.merge(key, stamp, Stamp::later);
+        if (this.keys.size() > Versions.KEYS_LIMIT) {
+            this.bumpAll();
+        }
+    }
+
+    // удаление данных по ключу: версия ключа больше не хранится
+    void drop(final int key) {
+        final Stamp stamp = this.next();
+
+        this.keys.compute(key, (k, own) -> {
+            this.floor.accumulateAndGet(stamp, Stamp::later);
+            return null;
+        });
+    }
+
+    // изменение данных по неизвестному ключу
+    void bumpAll() {
+        final Stamp stamp = this.next();
+
+        this.all.accumulateAndGet(stamp, Stamp::later);
+        this.keys.clear();
+    }
+
+    // метка версии всей таблицы
+    public Tag tag() {
+        final Stamp table = this.table.get();
+
+        return new Tag(
+            "\"" + this.prefix + "-" + Versions.EPOCH + "-" + table.version + "\"",
+            table.modified
+        );
+    }
+
+    // метка версии данных по ключу
+    public Tag tag(final int key) {
+        final Stamp all = this.all.get(),
+                    own = this.keys.get(key);
+
+        final Stamp version = own != null ? own : this.floor.get();
+
+        return new Tag(
+            "\"" + this.prefix + key + "-" + Versions.EPOCH + "-" + all.version + "." + version.version + "\"",
+            Math.max(all.modified, version.modified)
+        );
+    }
+
+    // сброс всех счетчиков
+    static void invalidateEverything() {
+        for (final Versions instance : Versions.instances) {
+            instance.bumpAll();
+        }
+    }
+
+    // следующая версия: версия таблицы и версия ключа берутся одним атомарным изменением счетчика
+    private Stamp next() {
+        return this.table.updateAndGet(table -> new Stamp(table.version + 1, System.currentTimeMillis()));
+    }
+}
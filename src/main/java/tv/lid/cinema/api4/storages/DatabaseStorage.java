@@ -3,9 +3,17 @@ package tv.lid.cinema.api4.storages;
 import java.sql.SQLException;
 import javax.sql.DataSource;
 
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
 import org.jooq.DSLContext;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.jooq.impl.DefaultConfiguration;
 
 import tv.lid.cinema.api4.config.Config;
+import tv.lid.cinema.api4.metrics.Metrics;
 
 // базовый абстрактный класс базы данных
 public abstract class DatabaseStorage {
@@ -15,7 +23,43 @@ public abstract class DatabaseStorage {
                                DB_TYPE_POSTGRES   = "postgres",   // PostgreSQL, вариант 1
                                DB_TYPE_POSTGRESQL = "postgresql"; // PostgreSQL, вариант 2
 
-    // инициализация DatabaseStorage по заданной конфигурации
+    // роль основного сервера
+    public static final String ROLE_PRIMARY = "primary";
+
+    // имя метрики состояния пула соединений
+    private static final String METRIC_POOL = "api4_db_pool_connections";
+
+    // параметры пула соединений
+    protected final Config.Pool cfgPool;
+
+    // роль сервера: основной либо имя реплики
+    private String role = DatabaseStorage.ROLE_PRIMARY;
+
+    // пул соединений
+    private HikariDataSource pool = null;
+
+    // DSL context поверх пула соединений (создается один раз при установлении соединения)
+    private DSLContext dsl = null;
+
+    // конструктор #1
+    protected DatabaseStorage(final Config.Pool cfgPool) {
+        this.cfgPool = cfgPool != null ? cfgPool : new Config.Pool();
+    }
+
+    // конструктор #2
+    protected DatabaseStorage() {
+        this(null);
+    }
+
+    // инициализация DatabaseStorage по заданной конфигурации #1 -- с заданной ролью сервера
+    public static DatabaseStorage initialize(final Config.Database cfgDb, final String role) throws SQLException {
+        final DatabaseStorage dbs = DatabaseStorage.initialize(cfgDb);
+
+        dbs.role = role;
+        return dbs;
+    }
+
+    // инициализация DatabaseStorage по заданной конфигурации #2 -- основной сервер
     public static DatabaseStorage initialize(final Config.Database cfgDb) throws SQLException {
         final DatabaseStorage dbs;
 
@@ -39,6 +83,73 @@ public abstract class DatabaseStorage {
     // разрыв соединения с базой данных
     public abstract void disconnect() throws SQLException;
 
-    // получить DSL context
-    public abstract DSLContext dslContext() throws SQLException;
+    // SQL-диалект базы данных
+    protected abstract SQLDialect dialect();
+
+    // получить DSL context, время выполнения запросов учитывается в метриках
+    public DSLContext dslContext() throws SQLException {
+        if (this.dsl != null) {
+            return this.dsl;
+        } else {
+            throw new SQLException();
+        }
+    }
+
+    // создание пула соединений поверх заданного data source
+    protected final void openPool(final DataSource ds) throws SQLException {
+        final HikariConfig cfg = new HikariConfig();
+
+        cfg.setDataSource(ds);
+        cfg.setPoolName(
+            "api4-" + this.dialect().getNameLC() +
+            (this.role.equals(DatabaseStorage.ROLE_PRIMARY) ? "" : "-" + this.role)
+        );
+        cfg.setMinimumIdle(this.cfgPool.minSize);
+        cfg.setMaximumPoolSize(this.cfgPool.maxSize);
+        cfg.setConnectionTimeout(this.cfgPool.acquireTimeout);
+        cfg.setValidationTimeout(this.cfgPool.validationTimeout);
+        if (this.cfgPool.validationQuery != null && !this.cfgPool.validationQuery.isEmpty()) {
+            cfg.setConnectionTestQuery(this.cfgPool.validationQuery);
+        }
+        if (this.cfgPool.leakDetection > 0) {
+            cfg.setLeakDetectionThreshold(this.cfgPool.leakDetection);
+        }
+
+        try {
+            this.pool = new HikariDataSource(cfg);
+        } catch (Exception exc) {
+            throw new SQLException(exc);
+        }
+
+        this.dsl = DSL.using(
+            new DefaultConfiguration()
+                .set(this.pool)
+                .set(this.dialect())
+                .set(Metrics.listener())
+        );
+
+        // показатели состояния пула
+        final HikariPoolMXBean bean = this.pool.getHikariPoolMXBean();
+        final String           help = "Connections in the database pool by state.",
+                               pool = "pool=\"" + this.role + "\",";
+
+        Metrics.unregister(DatabaseStorage.METRIC_POOL, pool);
+        Metrics.gauge(DatabaseStorage.METRIC_POOL, pool + "state=\"active\"",  help, bean::getActiveConnections);
+        Metrics.gauge(DatabaseStorage.METRIC_POOL, pool + "state=\"idle\"",    help, bean::getIdleConnections);
+        Metrics.gauge(DatabaseStorage.METRIC_POOL, pool + "state=\"total\"",   help, bean::getTotalConnections);
+        Metrics.gauge(DatabaseStorage.METRIC_POOL, pool + "state=\"pending\"", help, bean::getThreadsAwaitingConnection);
+    }
+
+    // закрытие пула соединений
+    protected final void closePool() throws SQLException {
+        if (this.pool != null) {
+            Metrics.unregister(DatabaseStorage.METRIC_POOL, "pool=\"" + this.role + "\",");
+
+            this.pool.close();
+            this.pool = null;
+            this.dsl  = null;
+        } else {
+            throw new SQLException();
+        }
+    }
 }
@@ -6,14 +6,16 @@ import javax.sql.DataSource;
 import org.h2.tools.Server;
 import org.h2.jdbcx.JdbcDataSource;
 
-import org.jooq.DSLContext;
 import org.jooq.SQLDialect;
-import org.jooq.impl.DSL;
 
 import tv.lid.cinema.api4.config.Config;
 
 // класс доступа к базе данных H2
 public final class H2Storage extends DatabaseStorage {
+    // возможные режимы работы с базой данных
+    public static final String MODE_EMBEDDED = "embedded", // встроенный режим, внутри процесса приложения
+                               MODE_TCP      = "tcp";      // подключение к собственному TCP-серверу
+
     // дефолтные параметры подключения к базе данных
     private static final int    DEFAULT_DB_PORT     = 7799;        // дефолтный порт для подключения к серверу БД
 
@@ -21,15 +23,19 @@ public final class H2Storage extends DatabaseStorage {
                                 DEFAULT_DB_HOME     = "data",      // дефолтный каталог для хранения файла БД
                                 DEFAULT_DB_FILE     = "cinema",    // дефолтный файл БД
                                 DEFAULT_DB_USERNAME = "sa",        // дефолтное имя пользователя БД
-                                DEFAULT_DB_PASSWORD = "sa@cinema"; // дефолтный пароль пользователя БД
+                                DEFAULT_DB_PASSWORD = "sa@cinema", // дефолтный пароль пользователя БД
+                                DEFAULT_DB_MODE     = MODE_EMBEDDED; // дефолтный режим работы с БД
 
     // параметры подключения к базе данных
-    private final int    dbPort;
-    private final String dbHost;
-    private final String dbHome;
-    private final String dbFile;
-    private final String dbUsername;
-    private final String dbPassword;
+    private final int     dbPort;
+    private final String  dbHost;
+    private final String  dbHome;
+    private final String  dbFile;
+    private final String  dbUsername;
+    private final String  dbPassword;
+    private final String  dbMode;
+    private final int     dbCacheSize;
+    private final boolean dbTcpServer;
 
     // экземпляр сервера БД
     private Server srv = null;
@@ -39,19 +45,28 @@ public final class H2Storage extends DatabaseStorage {
 
     // конструктор #1
     public H2Storage(
-        int    dbPort,
-        String dbHost,
-        String dbHome,
-        String dbFile,
-        String dbUsername,
-        String dbPassword
+        int         dbPort,
+        String      dbHost,
+        String      dbHome,
+        String      dbFile,
+        String      dbUsername,
+        String      dbPassword,
+        String      dbMode,
+        int         dbCacheSize,
+        boolean     dbTcpServer,
+        Config.Pool cfgPool
     ) {
-        this.dbPort     = dbPort;
-        this.dbHost     = dbHost;
-        this.dbHome     = dbHome;
-        this.dbFile     = dbFile;
-        this.dbUsername = dbUsername;
-        this.dbPassword = dbPassword;
+        super(cfgPool);
+
+        this.dbPort      = dbPort;
+        this.dbHost      = dbHost;
+        this.dbHome      = dbHome;
+        this.dbFile      = dbFile;
+        this.dbUsername  = dbUsername;
+        this.dbPassword  = dbPassword;
+        this.dbMode      = dbMode != null && !dbMode.isEmpty() ? dbMode : H2Storage.DEFAULT_DB_MODE;
+        this.dbCacheSize = dbCacheSize;
+        this.dbTcpServer = dbTcpServer;
     }
 
     // конструктор #2
@@ -62,7 +77,11 @@ public final class H2Storage extends DatabaseStorage {
             H2Storage.DEFAULT_DB_HOME,
             H2Storage.DEFAULT_DB_FILE,
             H2Storage.DEFAULT_DB_USERNAME,
-            H2Storage.DEFAULT_DB_PASSWORD
+            H2Storage.DEFAULT_DB_PASSWORD,
+            H2Storage.DEFAULT_DB_MODE,
+            0,
+            false,
+            null
         );
     }
 
@@ -74,52 +93,78 @@ public final class H2Storage extends DatabaseStorage {
             cfgDb.home,
             cfgDb.file,
             cfgDb.user,
-            cfgDb.pass
+            cfgDb.pass,
+            cfgDb.mode,
+            cfgDb.cacheSize,
+            cfgDb.tcpServer,
+            cfgDb.pool
         );
     }
 
     // установление соединения с базой данных
     public void connect() throws SQLException {
+        final boolean embedded = this.dbMode.equalsIgnoreCase(H2Storage.MODE_EMBEDDED);
+
+        if (!embedded && !this.dbMode.equalsIgnoreCase(H2Storage.MODE_TCP)) {
+            throw new SQLException();
+        }
+
         try {
-            // запуск сервера H2
             Class.forName("org.h2.Driver");
-            this.srv = Server.createTcpServer(
-                "-ifNotExists",
-                "-tcpDaemon",
-                "-tcpAllowOthers",
-                "-tcpPort",
-                String.valueOf(this.dbPort)
-            ).start();
+
+            // запуск TCP-сервера H2 -- в режиме tcp для самого приложения,
+            // во встроенном режиме -- только по запросу, для внешних инструментов
+            if (!embedded || this.dbTcpServer) {
+                this.srv = Server.createTcpServer(
+                    "-ifNotExists",
+                    "-tcpDaemon",
+                    "-tcpAllowOthers",
+                    "-tcpPort",
+                    String.valueOf(this.dbPort)
+                ).start();
+            }
+
+            // путь к файлу БД
+            final String path = (this.dbHome.startsWith("/") ? this.dbHome : "./" + this.dbHome) + "/" + this.dbFile;
+
+            // настройки БД, передаваемые в URL
+            final String settings = (this.dbCacheSize > 0 ? ";CACHE_SIZE=" + this.dbCacheSize : "") +
+                (this.cfgPool.statementCache > 0 ? ";QUERY_CACHE_SIZE=" + this.cfgPool.statementCache : "");
 
             // создание data source
             this.ds = new JdbcDataSource();
             this.ds.setURL(
-                "jdbc:h2:tcp://" + this.dbHost + ":" + this.dbPort + "/." + (this.dbHome.startsWith("/")
-                    ? this.dbHome
-                    : "/" + this.dbHome) + "/" + this.dbFile
+                embedded
+                    ? "jdbc:h2:file:" + path + settings
+                    : "jdbc:h2:tcp://" + this.dbHost + ":" + this.dbPort + "/" + path + settings
             );
             this.ds.setUser(this.dbUsername);
             this.ds.setPassword(this.dbPassword);
         } catch (Exception exc) {
             throw new SQLException();
         }
+
+        // создание пула соединений
+        this.openPool(this.ds);
     }
 
     // разрыв соединения с базой данных
     public void disconnect() throws SQLException {
         try {
-            this.srv.stop();
+            if (this.ds != null) {
+                this.ds = null;
+                this.closePool();
+            }
+            if (this.srv != null) {
+                this.srv.stop();
+            }
         } catch (Exception exc) {
             throw new SQLException();
         }
     }
 
-    // получить DSL context
-    public DSLContext dslContext() throws SQLException {
-        if (this.ds != null) {
-            return DSL.using(this.ds, SQLDialect.H2);
-        } else {
-            throw new SQLException();
-        }
+    // SQL-диалект базы данных
+    protected SQLDialect dialect() {
+        return SQLDialect.H2;
     }
 }
@@ -5,9 +5,7 @@ import javax.sql.DataSource;
 
 import com.mysql.cj.jdbc.MysqlDataSource;
 
-import org.jooq.DSLContext;
 import org.jooq.SQLDialect;
-import org.jooq.impl.DSL;
 
 import tv.lid.cinema.api4.config.Config;
 
@@ -21,6 +19,9 @@ public final class MySQLStorage extends DatabaseStorage {
                                 DEFAULT_DB_USERNAME = "root",      // дефолтное имя пользователя БД
                                 DEFAULT_DB_PASSWORD = "";          // дефолтный пароль пользователя БД
 
+    // максимальная длина SQL-текста запроса, помещаемого в кэш подготовленных запросов
+    private static final int    STATEMENT_CACHE_SQL_LIMIT = 2048;
+
     // параметры подключения к базе данных
     private final int    dbPort;
     private final String dbHost;
@@ -33,12 +34,15 @@ public final class MySQLStorage extends DatabaseStorage {
 
     // конструктор #1
     public MySQLStorage(
-        int    dbPort,
-        String dbHost,
-        String dbName,
-        String dbUsername,
-        String dbPassword
+        int         dbPort,
+        String      dbHost,
+        String      dbName,
+        String      dbUsername,
+        String      dbPassword,
+        Config.Pool cfgPool
     ) {
+        super(cfgPool);
+
         this.dbPort     = dbPort;
         this.dbHost     = dbHost;
         this.dbName     = dbName;
@@ -53,7 +57,8 @@ public final class MySQLStorage extends DatabaseStorage {
             MySQLStorage.DEFAULT_DB_HOST,
             MySQLStorage.DEFAULT_DB_NAME,
             MySQLStorage.DEFAULT_DB_USERNAME,
-            MySQLStorage.DEFAULT_DB_PASSWORD
+            MySQLStorage.DEFAULT_DB_PASSWORD,
+            null
         );
     }
 
@@ -64,7 +69,8 @@ public final class MySQLStorage extends DatabaseStorage {
             cfgDb.host,
             cfgDb.name,
             cfgDb.user,
-            cfgDb.pass
+            cfgDb.pass,
+            cfgDb.pool
         );
     }
 
@@ -76,23 +82,31 @@ public final class MySQLStorage extends DatabaseStorage {
         this.ds.setDatabaseName(this.dbName);
         this.ds.setUser(this.dbUsername);
         this.ds.setPassword(this.dbPassword);
+
+        // кэш подготовленных запросов на стороне драйвера и сервера
+        if (this.cfgPool.statementCache > 0) {
+            this.ds.setUseServerPrepStmts(true);
+            this.ds.setCachePrepStmts(true);
+            this.ds.setPrepStmtCacheSize(this.cfgPool.statementCache);
+            this.ds.setPrepStmtCacheSqlLimit(MySQLStorage.STATEMENT_CACHE_SQL_LIMIT);
+        }
+
+        // создание пула соединений
+        this.openPool(this.ds);
     }
 
     // разрыв соединения с базой данных
     public void disconnect() throws SQLException {
         if (this.ds != null) {
             this.ds = null;
+            this.closePool();
         } else {
             throw new SQLException();
         }
     }
 
-    // получить DSL context
-    public DSLContext dslContext() throws SQLException {
-        if (this.ds != null) {
-            return DSL.using(this.ds, SQLDialect.MYSQL);
-        } else {
-            throw new SQLException();
-        }
+    // SQL-диалект базы данных
+    protected SQLDialect dialect() {
+        return SQLDialect.MYSQL;
     }
 }
@@ -5,9 +5,7 @@ import javax.sql.DataSource;
 
 import org.postgresql.ds.PGSimpleDataSource;
 
-import org.jooq.DSLContext;
 import org.jooq.SQLDialect;
-import org.jooq.impl.DSL;
 
 import tv.lid.cinema.api4.config.Config;
 
@@ -33,12 +31,15 @@ public final class PostgreSQLStorage extends DatabaseStorage {
 
     // конструктор #1
     public PostgreSQLStorage(
-        int    dbPort,
-        String dbHost,
-        String dbName,
-        String dbUsername,
-        String dbPassword
+        int         dbPort,
+        String      dbHost,
+        String      dbName,
+        String      dbUsername,
+        String      dbPassword,
+        Config.Pool cfgPool
     ) {
+        super(cfgPool);
+
         this.dbPort     = dbPort;
         this.dbHost     = dbHost;
         this.dbName     = dbName;
@@ -53,7 +54,8 @@ public final class PostgreSQLStorage extends DatabaseStorage {
             PostgreSQLStorage.DEFAULT_DB_HOST,
             PostgreSQLStorage.DEFAULT_DB_NAME,
             PostgreSQLStorage.DEFAULT_DB_USERNAME,
-            PostgreSQLStorage.DEFAULT_DB_PASSWORD
+            PostgreSQLStorage.DEFAULT_DB_PASSWORD,
+            null
         );
     }
 
@@ -64,7 +66,8 @@ public final class PostgreSQLStorage extends DatabaseStorage {
             cfgDb.host,
             cfgDb.name,
             cfgDb.user,
-            cfgDb.pass
+            cfgDb.pass,
+            cfgDb.pool
         );
     }
 
@@ -76,23 +79,29 @@ public final class PostgreSQLStorage extends DatabaseStorage {
         this.ds.setDatabaseName(this.dbName);
         this.ds.setUser(this.dbUsername);
         this.ds.setPassword(this.dbPassword);
+
+        // серверная подготовка запросов с первого выполнения и кэш подготовленных запросов драйвера
+        if (this.cfgPool.statementCache > 0) {
+            this.ds.setPrepareThreshold(1);
+            this.ds.setPreparedStatementCacheQueries(this.cfgPool.statementCache);
+        }
+
+        // создание пула соединений
+        this.openPool(this.ds);
     }
 
     // разрыв соединения с базой данных
     public void disconnect() throws SQLException {
         if (this.ds != null) {
             this.ds = null;
+            this.closePool();
         } else {
             throw new SQLException();
         }
     }
 
-    // получить DSL context
-    public DSLContext dslContext() throws SQLException {
-        if (this.ds != null) {
-            return DSL.using(this.ds, SQLDialect.POSTGRES);
-        } else {
-            throw new SQLException();
-        }
+    // SQL-диалект базы данных
+    protected SQLDialect dialect() {
+        return SQLDialect.POSTGRES;
     }
 }
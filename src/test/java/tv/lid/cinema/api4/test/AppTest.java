@@ -1,10 +1,20 @@
 package tv.lid.cinema.api4.test;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
@@ -22,17 +32,30 @@ import okhttp3.RequestBody;
 import okhttp3.Response;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.type.TypeReference;
 
+import static org.jooq.impl.DSL.*;
+import org.jooq.DSLContext;
+import org.jooq.Record;
+import org.jooq.Table;
+import org.jooq.impl.SQLDataType;
+
 import tv.lid.cinema.api4.App;
+import tv.lid.cinema.api4.config.Config;
+import tv.lid.cinema.api4.models.AsyncRepository;
 import tv.lid.cinema.api4.models.CommonModel;
 import tv.lid.cinema.api4.models.MovieModel;
 import tv.lid.cinema.api4.models.ScheduleModel;
+import tv.lid.cinema.api4.models.Shards;
+import tv.lid.cinema.api4.storages.DatabaseStorage;
 
 @TestMethodOrder(OrderAnnotation.class)
 public final class AppTest {
@@ -60,25 +83,36 @@ public final class AppTest {
         @JsonProperty(value = "pages", required = false, defaultValue = "0")
         public final int pages; // количество страниц
 
+        @JsonProperty(value = "next", required = false)
+        public final String next; // курсор следующей страницы
+
+        @JsonProperty(value = "prev", required = false)
+        public final String prev; // курсор предыдущей страницы
+
         // конструктор #1
         @JsonCreator
         public ListWrapper(
             @JsonProperty("list")  final List<T> list,
             @JsonProperty("total") final int     total,
-            @JsonProperty("pages") final int     pages
+            @JsonProperty("pages") final int     pages,
+            @JsonProperty("next")  final String  next,
+            @JsonProperty("prev")  final String  prev
         ) {
             this.list  = list;
             this.total = total;
             this.pages = pages;
+            this.next  = next;
+            this.prev  = prev;
         }
 
         // конструктор #2
         public ListWrapper() {
-            this(new ArrayList<T>(), 0, 0);
+            this(new ArrayList<T>(), 0, 0, null, null);
         }
     }
 
     @JsonInclude(Include.NON_NULL)
+    @JsonIgnoreProperties(ignoreUnknown = true)
     private static class Result {
         @JsonProperty(value = "code", required = true)
         public final int code;  // код ответа
@@ -370,6 +404,240 @@ public final class AppTest {
         }
     }
 
+    @Test
+    @Order(111)
+    @DisplayName("Get the list of movies with cursors")
+    public void getMoviesListWithCursors() {
+        // единственная страница не должна иметь курсоров соседних страниц
+        final AppTest.ListWrapper<MovieModel> data = AppTest.__getMovies();
+        if (data != null) {
+            assertTrue(
+                data.pages == 1 && data.next == null && data.prev == null,
+                "Wrong paging data was received from server!"
+            );
+        }
+
+        // некорректный курсор должен быть отвергнут
+        assertEquals(
+            400,
+            AppTest.__getCode("/movies?cursor=%21%21%21"),
+            "Malformed cursor was not rejected by server!"
+        );
+    }
+
+    @Test
+    @Order(112)
+    @DisplayName("Get the list of movies without total")
+    public void getMoviesListWithoutTotal() {
+        // запрашиваем список фильмов без подсчета общего количества
+        final AppTest.ListWrapper<MovieModel> data = AppTest.__getMovies("?withTotal=false");
+        if (data != null) {
+            assertTrue(
+                data.list.size() == 2 && data.total == 0 && data.pages == 0,
+                "Wrong data was received from server!"
+            );
+        }
+    }
+
+    @Test
+    @Order(113)
+    @DisplayName("Export all movies")
+    public void exportMovies() {
+        // запрашиваем выгрузку фильмов в формате NDJSON
+        final Request request = new Request.Builder().url(AppTest.API_URL_PREFIX + "/movies/export").build();
+
+        try {
+            final String content = (AppTest.client.newCall(request).execute()).body().string();
+            final ObjectMapper mapper = new ObjectMapper();
+
+            int count = 0;
+            for (final String line : content.split("\n")) {
+                if (!line.isEmpty()) {
+                    assertTrue(mapper.readValue(line, MovieModel.class).id > 0, "Wrong data was received from server!");
+                    count++;
+                }
+            }
+            assertEquals(2, count, "Wrong number of movies was received from server!");
+        } catch (IOException exc) {
+            fail("Failed to send a request to server!");
+        }
+    }
+
+    @Test
+    @Order(114)
+    @DisplayName("Get the unchanged list of movies conditionally")
+    public void getMoviesListNotModified() {
+        try {
+            // первый запрос возвращает ETag текущей версии списка
+            final Request first = new Request.Builder().url(AppTest.API_URL_PREFIX + "/movies").build();
+            final String  etag;
+            try (Response response = AppTest.client.newCall(first).execute()) {
+                etag = response.header("ETag");
+            }
+            assertNotNull(etag, "No ETag was received from server!");
+
+            // повторный запрос с этим ETag получает 304 без тела
+            final Request second = new Request.Builder()
+                .url(AppTest.API_URL_PREFIX + "/movies")
+                .header("If-None-Match", etag)
+                .build();
+            try (Response response = AppTest.client.newCall(second).execute()) {
+                assertEquals(304, response.code(), "Wrong response code was received from server!");
+            }
+        } catch (IOException exc) {
+            fail("Failed to send a request to server!");
+        }
+    }
+
+    @Test
+    @Order(115)
+    @DisplayName("Export the list of movies with gzip compression")
+    public void exportMoviesCompressed() {
+        try {
+            // клиент явно запрашивает gzip и получает сжатый поток
+            final Request gzip = new Request.Builder()
+                .url(AppTest.API_URL_PREFIX + "/movies/export")
+                .header("Accept-Encoding", "gzip")
+                .build();
+            try (Response response = AppTest.client.newCall(gzip).execute()) {
+                assertEquals("gzip", response.header("Content-Encoding"), "Response was not compressed!");
+
+                final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(response.body().byteStream()), StandardCharsets.UTF_8
+                ));
+
+                int count = 0;
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (!line.isEmpty()) {
+                        count++;
+                    }
+                }
+                assertEquals(2, count, "Wrong number of movies was received from server!");
+            }
+
+            // без поддержки сжатия ответ передается как есть
+            final Request identity = new Request.Builder()
+                .url(AppTest.API_URL_PREFIX + "/movies/export")
+                .header("Accept-Encoding", "identity")
+                .build();
+            try (Response response = AppTest.client.newCall(identity).execute()) {
+                assertNull(response.header("Content-Encoding"), "Response was compressed unexpectedly!");
+            }
+        } catch (IOException exc) {
+            fail("Failed to send a request to server!");
+        }
+    }
+
+    @Test
+    @Order(116)
+    @DisplayName("Get the list of movies from the page cache")
+    public void getMoviesListCached() {
+        try {
+            // два одинаковых запроса: второй обслуживается из кэша готовых страниц
+            final String[] contents = new String[2];
+            for (int i = 0; i < contents.length; i++) {
+                final Request request = new Request.Builder()
+                    .url(AppTest.API_URL_PREFIX + "/movies")
+                    .header("Accept-Encoding", "identity")
+                    .build();
+                try (Response response = AppTest.client.newCall(request).execute()) {
+                    contents[i] = response.body().string();
+                }
+            }
+            assertEquals(contents[0], contents[1], "Cached page differs from the original one!");
+
+            // попадание в кэш страниц отражено в метриках
+            final Request request = new Request.Builder().url(AppTest.API_URL_PREFIX + "/metrics").build();
+            final String  metrics = (AppTest.client.newCall(request).execute()).body().string();
+
+            long hits = 0;
+            for (final String line : metrics.split("\n")) {
+                if (line.startsWith("api4_cache_hits_total{cache=\"pages\"} ")) {
+                    hits = Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+                }
+            }
+            assertTrue(hits > 0, "Page cache was not used!");
+        } catch (IOException exc) {
+            fail("Failed to send a request to server!");
+        }
+    }
+
+    @Test
+    @Order(117)
+    @DisplayName("Search movies by title")
+    public void searchMovies() {
+        try {
+            // часть слова внутри названия без учета регистра и пустой результат
+            final ObjectMapper mapper = new ObjectMapper();
+            final JsonNode     found  = mapper.readTree(AppTest.__get("/movies/search?q=ЕНЕР")).get("data"),
+                               empty  = mapper.readTree(AppTest.__get("/movies/search?q=Шерлок")).get("data");
+            assertTrue(
+                found.size() == 1 && found.get(0).get("title").asText().equals("Генерал") &&
+                empty.size() == 0,
+                "Wrong data was received from server!"
+            );
+        } catch (IOException exc) {
+            fail("Failed to decode the server response!");
+        }
+
+        // поисковая строка обязательна
+        assertEquals(
+            400,
+            AppTest.__getCode("/movies/search?q="),
+            "Empty search query was accepted!"
+        );
+    }
+
+    @Test
+    @Order(118)
+    @DisplayName("Get no validators with a failed list of movies")
+    public void getMoviesListFailedNoValidators() {
+        // ошибка не должна кэшироваться клиентом, поэтому ETag и Last-Modified с ней не выдаются
+        final Request request = new Request.Builder().url(AppTest.API_URL_PREFIX + "/movies?cursor=garbage").build();
+
+        try (Response response = AppTest.client.newCall(request).execute()) {
+            assertEquals(
+                400,
+                (new ObjectMapper()).readValue(response.body().string(), AppTest.Result.class).code,
+                "Wrong response code was received from server!"
+            );
+            assertTrue(
+                response.header("ETag") == null && response.header("Last-Modified") == null,
+                "Validators were sent with a failed response!"
+            );
+        } catch (IOException exc) {
+            fail("Failed to send a request to server!");
+        }
+    }
+
+    @Test
+    @Order(119)
+    @DisplayName("Get the unchanged movie and schedules conditionally")
+    public void getMovieAndSchedulesNotModified() {
+        // асинхронные маршруты отвечают 304 на If-None-Match с актуальным ETag
+        for (final String path : new String[] { "/movie/1", "/schedules/3" }) {
+            try {
+                final Request first = new Request.Builder().url(AppTest.API_URL_PREFIX + path).build();
+                final String  etag;
+                try (Response response = AppTest.client.newCall(first).execute()) {
+                    etag = response.header("ETag");
+                }
+                assertNotNull(etag, "No ETag was received from server!");
+
+                final Request second = new Request.Builder()
+                    .url(AppTest.API_URL_PREFIX + path)
+                    .header("If-None-Match", etag)
+                    .build();
+                try (Response response = AppTest.client.newCall(second).execute()) {
+                    assertEquals(304, response.code(), "Wrong response code was received from server!");
+                    assertEquals(etag, response.header("ETag"), "Wrong ETag was received from server!");
+                }
+            } catch (IOException exc) {
+                fail("Failed to send a request to server!");
+            }
+        }
+    }
+
     @Test
     @Order(120)
     @DisplayName("Get the list of schedules #1")
@@ -408,6 +676,15 @@ public final class AppTest {
         AppTest.__addSchedule(3, "2020-09-12 21:00", (byte) 2);
     }
 
+    @Test
+    @Order(155)
+    @DisplayName("Add the schedule with incorrect date and time")
+    public void addScheduleWithWrongDateTime() {
+        // сеанс с некорректной датой не должен быть сохранён
+        final String json = "{\"movieId\": 3, \"dateAndTime\": \"tomorrow evening\", \"auditorium\": 2}";
+        assertTrue(AppTest.__postCode("/schedule", json) == 400, "Wrong response code was received from server!");
+    }
+
     @Test
     @Order(160)
     @DisplayName("Get the list of schedules #2")
@@ -564,6 +841,623 @@ public final class AppTest {
         }
     }
 
+    @Test
+    @Order(215)
+    @DisplayName("Add schedules in batch")
+    public void addSchedulesBatch() {
+        // NDJSON-пакет: корректный сеанс и сеанс несуществующего фильма
+        final String ndjson =
+            "{\"movieId\": 3, \"dateAndTime\": \"2020-09-13 21:00\", \"auditorium\": 2}\n" +
+            "{\"movieId\": 999, \"dateAndTime\": \"2020-09-13 21:00\", \"auditorium\": 2}\n";
+
+        try {
+            final JsonNode data = (new ObjectMapper()).readTree(AppTest.__post("/schedules/batch", ndjson)).get("data");
+            assertTrue(
+                data.size() == 2 &&
+                data.get(0).get("code").asInt() == 200 && data.get(0).get("id").asInt() > 0 &&
+                data.get(1).get("code").asInt() == 400,
+                "Wrong data was received from server!"
+            );
+        } catch (IOException exc) {
+            fail("Failed to decode the server response!");
+        }
+    }
+
+    @Test
+    @Order(216)
+    @DisplayName("Get schedules of all movies within a time range")
+    public void getSchedulesRange() {
+        try {
+            // сеансы 2 и 3 попадают в интервал, сеанс из пакета -- нет; в зале 2 только сеанс 3
+            final String       range  = "/schedules?from=2020-09-11 00:00&to=2020-09-13 00:00";
+            final ObjectMapper mapper = new ObjectMapper();
+            final JsonNode     all    = mapper.readTree(AppTest.__get(range)).get("data"),
+                               hall   = mapper.readTree(AppTest.__get(range + "&auditorium=2")).get("data");
+            assertTrue(
+                all.get("total").asInt() == 2 &&
+                all.get("list").size() == 2 &&
+                all.get("list").get(0).get("dateAndTime").asText().equals("2020-09-11 22:00") &&
+                all.get("list").get(0).get("movieId").asInt() == 3 &&
+                all.get("list").get(1).get("dateAndTime").asText().equals("2020-09-12 21:00") &&
+                hall.get("list").size() == 1 &&
+                hall.get("list").get(0).get("auditorium").asInt() == 2,
+                "Wrong data was received from server!"
+            );
+        } catch (IOException exc) {
+            fail("Failed to decode the server response!");
+        }
+
+        // интервал с перепутанными границами
+        assertEquals(
+            400,
+            AppTest.__getCode("/schedules?from=2020-09-13 00:00&to=2020-09-11 00:00"),
+            "Wrong time range was accepted!"
+        );
+    }
+
+    @Test
+    @Order(217)
+    @DisplayName("Reject overlapping schedules in the same auditorium")
+    public void addScheduleOverlapping() {
+        // сеанс фильма #3 (75 минут) в зале 2 начинается в 21:00 -- сеанс в 21:30 в том же зале пересекается с ним
+        assertEquals(
+            409,
+            AppTest.__postCode("/schedule", "{\"movieId\": 3, \"dateAndTime\": \"2020-09-12 21:30\", \"auditorium\": 2}"),
+            "Overlapping schedule was accepted!"
+        );
+
+        // то же время в другом зале свободно
+        AppTest.__addSchedule(3, "2020-09-12 21:30", (byte) 3);
+    }
+
+    @Test
+    @Order(218)
+    @DisplayName("Reject a movie duration that makes its schedules overlap")
+    public void modifyMovieOverlapping() {
+        // сеанс фильма (60 минут) в зале 5 в 10:00 и сеанс другого фильма в том же зале в 11:30
+        final MovieModel movie, other, brief;
+        try {
+            movie  = new MovieModel("Overlap #1", (short) 60, (short) 2020).save();
+            other  = new MovieModel("Overlap #2", (short) 60, (short) 2020).save();
+            brief = new MovieModel("Overlap #3", (short) 15, (short) 2020).save();
+            new ScheduleModel(movie.id, "2020-10-01 10:00", (byte) 5).save();
+            new ScheduleModel(other.id, "2020-10-01 11:30", (byte) 5).save();
+        } catch (SQLException exc) {
+            fail("Failed to create the overlapping movies!");
+            return;
+        }
+
+        // со 120 минутами первый сеанс заходит на второй -- изменение отклоняется и в БД не попадает
+        final Request request = new Request.Builder()
+            .url(AppTest.API_URL_PREFIX + "/movie")
+            .put(RequestBody.create(
+                AppTest.JSON,
+                "{\"id\": " + movie.id + ", \"title\": \"Overlap #1\", \"duration\": 120, \"year\": 2020}"
+            ))
+            .build();
+
+        try (Response response = AppTest.client.newCall(request).execute()) {
+            assertEquals(
+                409,
+                (new ObjectMapper()).readValue(response.body().string(), AppTest.Result.class).code,
+                "Overlapping movie duration was accepted!"
+            );
+        } catch (IOException exc) {
+            fail("Failed to send a request to server!");
+        }
+
+        try {
+            assertEquals(60, MovieModel.find(movie.id).duration, "Rejected movie duration was saved!");
+
+            // 90 минут заканчиваются ровно к началу второго сеанса; окончание сеанса в индексе пересчитано
+            assertEquals(90, new MovieModel(movie.id, "Overlap #1", (short) 90, (short) 2020).save().duration);
+            assertThrows(
+                ScheduleModel.OverlapException.class,
+                () -> new ScheduleModel(brief.id, "2020-10-01 11:10", (byte) 5).save(),
+                "Schedule overlapping the lengthened one was accepted!"
+            );
+        } catch (SQLException exc) {
+            fail("Failed to modify the overlapping movie!");
+        }
+
+        // пакет: сохраненный сеанс, пересечение внутри пакета, фильм, удаленный в обход кэша (внешний ключ)
+        final Config    cfg     = Config.load(AppTest.cfgPath);
+        DatabaseStorage storage = null;
+
+        try {
+            final MovieModel gone = new MovieModel("Overlap #4", (short) 60, (short) 2020).save();
+            MovieModel.find(gone.id);
+
+            storage = DatabaseStorage.initialize(cfg.database, "direct");
+            storage.connect();
+            storage.dslContext()
+                .deleteFrom(table(name("api4_movies")))
+                .where(field(name("id"), int.class).equal(gone.id))
+                .execute();
+
+            final List<ScheduleModel.Outcome> outcomes = ScheduleModel.saveAll(Arrays.asList(
+                new ScheduleModel(other.id, "2020-10-01 13:00", (byte) 5),
+                new ScheduleModel(other.id, "2020-10-01 13:30", (byte) 5),
+                new ScheduleModel(gone.id,  "2020-10-01 16:00", (byte) 5)
+            ));
+            assertTrue(
+                outcomes.get(0).saved != null &&
+                outcomes.get(1).rejection == ScheduleModel.Outcome.Rejection.OVERLAP &&
+                outcomes.get(2).rejection == ScheduleModel.Outcome.Rejection.MOVIE_NOT_FOUND,
+                "Wrong batch outcomes were returned!"
+            );
+        } catch (SQLException exc) {
+            fail("Failed to save the batch of schedules!");
+        } finally {
+            if (storage != null) {
+                try {
+                    storage.disconnect();
+                } catch (SQLException exc) {}
+            }
+        }
+    }
+
+    @Test
+    @Order(219)
+    @DisplayName("Keep the schedules of other movies cached after a removal")
+    public void killScheduleKeepsOtherMovies() {
+        // по сеансу двух разных фильмов в зале 7
+        final MovieModel    kept, changed;
+        final ScheduleModel removed;
+        try {
+            kept    = new MovieModel("Invalidate #1", (short) 60, (short) 2020).save();
+            changed = new MovieModel("Invalidate #2", (short) 60, (short) 2020).save();
+            new ScheduleModel(kept.id, "2020-10-02 10:00", (byte) 7).save();
+            removed = new ScheduleModel(changed.id, "2020-10-02 12:00", (byte) 7).save();
+        } catch (SQLException exc) {
+            fail("Failed to create the schedules!");
+            return;
+        }
+
+        final String keptPath    = "/schedules/" + kept.id,
+                     changedPath = "/schedules/" + changed.id,
+                     keptTag     = AppTest.__getETag(keptPath),
+                     changedTag  = AppTest.__getETag(changedPath);
+
+        // удаление сеанса сбрасывает версию списка только его фильма
+        AppTest.__killSchedule(removed.id);
+        assertEquals(304, AppTest.__getConditionalCode(keptPath, keptTag), "Schedules of another movie were invalidated!");
+        assertEquals(200, AppTest.__getConditionalCode(changedPath, changedTag), "Schedules of the movie were not invalidated!");
+    }
+
+    @Test
+    @Order(220)
+    @DisplayName("Get the cache statistics")
+    public void getCacheStats() {
+        // запрашиваем статистику кэшей записей
+        assertEquals(
+            200,
+            AppTest.__getCode("/stats/cache"),
+            "Failed to get the cache statistics!"
+        );
+    }
+
+    @Test
+    @Order(230)
+    @DisplayName("Get the metrics")
+    public void getMetrics() {
+        // запрашиваем метрики в текстовом формате Prometheus
+        final Request request = new Request.Builder().url(AppTest.API_URL_PREFIX + "/metrics").build();
+
+        try {
+            final String content = (AppTest.client.newCall(request).execute()).body().string();
+            assertTrue(
+                content.contains("api4_http_request_duration_seconds_count{route=\"GET /api4/movies\"}") &&
+                content.contains("api4_db_query_duration_seconds_count{type=\"read\",table=\"api4_movies\"}"),
+                "Wrong data was received from server!"
+            );
+        } catch (IOException exc) {
+            fail("Failed to send a request to server!");
+        }
+    }
+
+    @Test
+    @Order(235)
+    @DisplayName("Measure asynchronous routes until their results complete")
+    public void getMetricsOfAsyncRoutes() {
+        // все потоки БД заняты на 500 мс -- запрос фильма ждет в очереди пула
+        final int pool = Config.load(AppTest.cfgPath).database.pool.maxSize;
+        for (int i = 0; i < pool; i++) {
+            AsyncRepository.supply(() -> {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException exc) {}
+                return null;
+            });
+        }
+
+        assertEquals(
+            400,
+            AppTest.__getCode("/movie/987654"),
+            "Nonexistent movie was found!"
+        );
+
+        // время маршрута включает ожидание и выполнение запроса к БД, а не только создание результата
+        final String prefix = "api4_http_request_duration_seconds_sum{route=\"GET /api4/movie/{id}\"} ";
+        for (final String line : AppTest.__get("/metrics").split("\n")) {
+            if (line.startsWith(prefix)) {
+                assertTrue(
+                    Double.parseDouble(line.substring(prefix.length())) >= 0.4,
+                    "Asynchronous route was measured without the database time!"
+                );
+                return;
+            }
+        }
+        fail("Metrics of the asynchronous route were not found!");
+    }
+
+    @Test
+    @Order(240)
+    @DisplayName("Read own writes from the primary database")
+    public void readYourWrites() {
+        // любой запрос на изменение закрепляет чтение клиента за основным сервером
+        final Request request = new Request.Builder()
+            .url(AppTest.API_URL_PREFIX + "/movie")
+            .post(RequestBody.create(AppTest.JSON, "{}"))
+            .build();
+
+        try (Response response = AppTest.client.newCall(request).execute()) {
+            final String cookie = response.header("Set-Cookie");
+            assertTrue(
+                cookie != null && cookie.startsWith("api4-primary-until="),
+                "No read-your-writes cookie was received from server!"
+            );
+        } catch (IOException exc) {
+            fail("Failed to send a request to server!");
+        }
+    }
+
+    @Test
+    @Order(250)
+    @DisplayName("Spread schedules across shards")
+    public void spreadSchedulesAcrossShards() {
+        // два локальных шарда H2 рядом с основной тестовой базой
+        final Config                cfg    = Config.load(AppTest.cfgPath);
+        final List<DatabaseStorage> shards = new ArrayList<>();
+
+        try {
+            final List<DSLContext> dsls = new ArrayList<>();
+            for (int i = 1; i <= 2; i++) {
+                final DatabaseStorage storage = DatabaseStorage.initialize(
+                    cfg.database.node(new Config.Node("localhost", 3306, null, "cinema-shard" + i)),
+                    "shard" + i
+                );
+                storage.connect();
+                shards.add(storage);
+                dsls.add(storage.dslContext());
+            }
+            Shards.configure(dsls);
+            ScheduleModel.createTable();
+
+            // фильмы, сеансы которых попадают на разные шарды
+            final MovieModel first  = new MovieModel("Shard #1", (short) 90, (short) 2020).save();
+            MovieModel       second = null;
+            for (int i = 0; i < 16 && second == null; i++) {
+                final MovieModel movie = new MovieModel("Shard #2", (short) 90, (short) 2020).save();
+                if (Shards.ofMovie(movie.id) != Shards.ofMovie(first.id)) {
+                    second = movie;
+                } else {
+                    MovieModel.kill(movie.id);
+                }
+            }
+            assertNotNull(second, "Failed to find a movie for the second shard!");
+
+            // одиночные операции направляются на шард фильма, идентификатор сеанса указывает на шард
+            final ScheduleModel one = new ScheduleModel(first.id,  "2020-09-14 10:00", (byte) 1).save(),
+                                two = new ScheduleModel(second.id, "2020-09-14 12:00", (byte) 2).save();
+            assertTrue(
+                Shards.ofId(one.id) == Shards.ofMovie(first.id) &&
+                Shards.ofId(two.id) == Shards.ofMovie(second.id) &&
+                ScheduleModel.find(two.id) != null &&
+                ScheduleModel.count(first.id) == 1 &&
+                ScheduleModel.count(second.id) == 1,
+                "Schedules were not routed to their shards!"
+            );
+
+            // сеанс несуществующего фильма не создается
+            assertNull(new ScheduleModel(999999, "2020-09-14 12:00", (byte) 2).save(), "A schedule of an unknown movie was saved!");
+
+            // перенос сеанса на фильм другого шарда отклоняется, сеанс остается на месте
+            final int other = second.id;
+            assertThrows(
+                ScheduleModel.CrossShardException.class,
+                () -> new ScheduleModel(one.id, other, "2020-09-14 16:00", (byte) 1).save(),
+                "A schedule was moved across shards!"
+            );
+            assertEquals(first.id, ScheduleModel.find(one.id).movieId, "A rejected move changed the schedule!");
+
+            // выгрузка собирает сеансы со всех шардов
+            final List<Integer> exported = new ArrayList<>();
+            ScheduleModel.export(schedule -> exported.add(schedule.id));
+            assertTrue(
+                exported.contains(one.id) && exported.contains(two.id),
+                "Schedules were not gathered from all shards!"
+            );
+
+            // сеансы, сохраняемые одновременно с удалением фильма, не остаются на шарде без фильма
+            final MovieModel racing = new MovieModel("Shard #3", (short) 30, (short) 2020).save();
+            final Thread     writer = new Thread(() -> {
+                for (int i = 0; i < 200; i++) {
+                    try {
+                        final String dateAndTime = String.format("2020-09-%02d %02d:00", 15 + i / 20, i % 20);
+                        if (new ScheduleModel(racing.id, dateAndTime, (byte) 3).save() == null) {
+                            return;
+                        }
+                    } catch (SQLException exc) {
+                        return;
+                    }
+                }
+            });
+            writer.start();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException exc) {}
+            MovieModel.kill(racing.id);
+            try {
+                writer.join();
+            } catch (InterruptedException exc) {}
+            assertEquals(
+                0,
+                dsls.get(Shards.ofMovie(racing.id)).fetchCount(
+                    table(name(ScheduleModel.tableName())),
+                    field(name("movie_id"), int.class).equal(racing.id)
+                ),
+                "Schedules saved during the movie removal were left on the shard!"
+            );
+
+            // удаление фильма удаляет его сеансы на шарде
+            MovieModel.kill(first.id);
+            MovieModel.kill(second.id);
+            assertTrue(
+                ScheduleModel.find(one.id) == null && ScheduleModel.count(second.id) == 0,
+                "Schedules of the removed movies were left on the shards!"
+            );
+
+            ScheduleModel.dropTable();
+        } catch (SQLException exc) {
+            fail("Failed to work with the sharded schedules!");
+        } finally {
+            Shards.configure(new ArrayList<>());
+            for (final DatabaseStorage storage : shards) {
+                try {
+                    storage.disconnect();
+                } catch (SQLException exc) {}
+            }
+        }
+    }
+
+    @Test
+    @Order(255)
+    @DisplayName("Decode schedule ids at the int boundary")
+    public void decodeShardIdsAtBoundary() {
+        // три шарда: подключения не нужны, проверяется только кодирование идентификаторов
+        Shards.configure(Collections.nCopies(3, (DSLContext) null));
+
+        try {
+            for (int shard = 0; shard < 3; shard++) {
+                // наибольший локальный идентификатор, глобальный идентификатор которого помещается в int
+                final int local  = (Integer.MAX_VALUE - shard) / 3,
+                          global = Shards.global(local, shard),
+                          number = shard;
+                assertTrue(
+                    global >= 0 && Shards.ofId(global) == shard && Shards.local(global) == local,
+                    "Schedule id was decoded incorrectly at the boundary!"
+                );
+
+                // следующий локальный идентификатор уже не кодируется и не заворачивается в отрицательный
+                assertThrows(
+                    ArithmeticException.class,
+                    () -> Shards.global(local + 1, number),
+                    "Schedule id overflowed silently!"
+                );
+            }
+
+            // фильмы с одинаковыми младшими битами идентификатора расходятся по разным шардам
+            Shards.configure(Collections.nCopies(4, (DSLContext) null));
+
+            final int[] spread = new int[4];
+            for (int movieId = 16; movieId <= 16 * 256; movieId += 16) {
+                spread[Shards.ofMovie(movieId)]++;
+            }
+            for (final int count : spread) {
+                assertTrue(count > 32, "Movies were not spread across shards!");
+            }
+        } finally {
+            Shards.configure(new ArrayList<>());
+        }
+    }
+
+    @Test
+    @Order(257)
+    @DisplayName("Report a failure in the middle of an export")
+    public void exportFailureIsReported() {
+        // два шарда: сеанс на первом, таблица второго удалена -- выгрузка обрывается после начала ответа
+        final Config                cfg    = Config.load(AppTest.cfgPath);
+        final List<DatabaseStorage> shards = new ArrayList<>();
+
+        try {
+            final List<DSLContext> dsls = new ArrayList<>();
+            for (int i = 1; i <= 2; i++) {
+                final DatabaseStorage storage = DatabaseStorage.initialize(
+                    cfg.database.node(new Config.Node("localhost", 3306, null, "cinema-shard" + i)),
+                    "shard" + i
+                );
+                storage.connect();
+                shards.add(storage);
+                dsls.add(storage.dslContext());
+            }
+            Shards.configure(dsls);
+            ScheduleModel.createTable();
+
+            MovieModel movie = null;
+            for (int i = 0; i < 16 && movie == null; i++) {
+                final MovieModel candidate = new MovieModel("Export #" + i, (short) 90, (short) 2020).save();
+                if (Shards.ofMovie(candidate.id) == 0) {
+                    movie = candidate;
+                } else {
+                    MovieModel.kill(candidate.id);
+                }
+            }
+            assertNotNull(movie, "Failed to find a movie for the first shard!");
+            new ScheduleModel(movie.id, "2020-09-16 10:00", (byte) 1).save();
+            dsls.get(1).dropTable(table(name(ScheduleModel.tableName()))).execute();
+
+            // записи первого шарда переданы, последняя строка сообщает об ошибке
+            final List<String> lines = new ArrayList<>();
+            for (final String line : AppTest.__get("/schedules/export").split("\n")) {
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+            final ObjectMapper mapper = new ObjectMapper();
+            assertTrue(lines.size() >= 2, "Exported records were not sent before the failure!");
+            assertTrue(mapper.readValue(lines.get(0), ScheduleModel.class).id > 0, "Wrong data was received from server!");
+            assertEquals(
+                500,
+                mapper.readValue(lines.get(lines.size() - 1), AppTest.Result.class).code,
+                "The export failure was not reported!"
+            );
+
+            MovieModel.kill(movie.id);
+            dsls.get(0).dropTable(table(name(ScheduleModel.tableName()))).execute();
+        } catch (Exception exc) {
+            fail("Failed to work with the sharded export!");
+        } finally {
+            Shards.configure(new ArrayList<>());
+            for (final DatabaseStorage storage : shards) {
+                try {
+                    storage.disconnect();
+                } catch (SQLException exc) {}
+            }
+        }
+    }
+
+    @Test
+    @Order(260)
+    @DisplayName("Upgrade the legacy schedules table")
+    public void upgradeLegacySchedules() {
+        // отдельная база H2 со старой таблицей сеансов, где date_time хранится строкой
+        final Config        cfg     = Config.load(AppTest.cfgPath);
+        final Table<Record> table   = table(name("api4_schedules"));
+        final String[]      starts  = { "2020-09-14 12:00", "2020-09-14 09:30", "2020-09-15 00:05" };
+        DatabaseStorage     storage = null;
+
+        try {
+            storage = DatabaseStorage.initialize(
+                cfg.database.node(new Config.Node("localhost", 3306, null, "cinema-legacy")),
+                "legacy"
+            );
+            storage.connect();
+
+            final DSLContext dsl = storage.dslContext();
+            dsl.dropTableIfExists(table).execute();
+            dsl.createTable(table)
+                .column("id",         SQLDataType.INTEGER.identity(true).nullable(false))
+                .column("movie_id",   SQLDataType.INTEGER.nullable(false))
+                .column("date_time",  SQLDataType.VARCHAR(16).nullable(false))
+                .column("auditorium", SQLDataType.TINYINT.nullable(false))
+                .constraints(primaryKey("id"))
+                .execute();
+            for (final String start : starts) {
+                dsl.insertInto(table, field(name("movie_id")), field(name("date_time")), field(name("auditorium")))
+                    .values(1, start, 1)
+                    .execute();
+            }
+
+            // столбец, оставшийся от прерванного перевода (DDL в MySQL не откатывается)
+            dsl.alterTable(table)
+                .addColumn("date_time_ts", SQLDataType.LOCALDATETIME.nullable(true))
+                .execute();
+
+            // сеансы хранятся в старой базе как на единственном шарде
+            Shards.configure(Arrays.asList(dsl));
+            App.upgrade();
+
+            // все записи перенесены, порядок по времени начала сохранен
+            final List<LocalDateTime> expected = Arrays.asList(
+                LocalDateTime.of(2020, 9, 14,  9, 30),
+                LocalDateTime.of(2020, 9, 14, 12,  0),
+                LocalDateTime.of(2020, 9, 15,  0,  5)
+            );
+            final List<LocalDateTime> upgraded = dsl
+                .select(field(name("date_time"), LocalDateTime.class))
+                .from(table)
+                .orderBy(field(name("date_time")), field(name("id")))
+                .fetch(field(name("date_time"), LocalDateTime.class));
+            assertEquals(expected, upgraded, "Schedules were damaged by the upgrade!");
+
+            // перевод, прерванный после удаления старого столбца, завершается повторным запуском
+            dsl.alterTable(table)
+                .renameColumn(name("date_time"))
+                .to(name("date_time_ts"))
+                .execute();
+            App.upgrade();
+
+            final List<LocalDateTime> resumed = dsl
+                .select(field(name("date_time"), LocalDateTime.class))
+                .from(table)
+                .orderBy(field(name("date_time")), field(name("id")))
+                .fetch(field(name("date_time"), LocalDateTime.class));
+            assertEquals(expected, resumed, "Interrupted upgrade was not completed!");
+
+            dsl.dropTable(table).execute();
+        } catch (Exception exc) {
+            fail("Failed to upgrade the legacy schedules table!");
+        } finally {
+            Shards.configure(new ArrayList<>());
+            if (storage != null) {
+                try {
+                    storage.disconnect();
+                } catch (SQLException exc) {}
+            }
+        }
+    }
+
+    @Test
+    @Order(270)
+    @DisplayName("Refuse to start in an unsupported server mode")
+    public void refuseUnsupportedServerMode() {
+        final PrintStream           stdout = System.out;
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        File                        file   = null;
+
+        try {
+            // конфигурация теста с неизвестным режимом сервера
+            final ObjectMapper mapper = new ObjectMapper();
+            final JsonNode     cfg    = mapper.readTree(new File(AppTest.cfgPath));
+            ((ObjectNode) cfg.path("server")).put("mode", "fibers");
+
+            file = File.createTempFile("config-", ".json");
+            mapper.writeValue(file, cfg);
+
+            // запуск прерывается до подключения к БД, работающий сервер не затронут
+            System.setOut(new PrintStream(output, true, "UTF-8"));
+            App.main(new String[] { "operate", file.getAbsolutePath() });
+        } catch (IOException exc) {
+            fail("Failed to prepare the configuration file!");
+        } finally {
+            System.setOut(stdout);
+            if (file != null) {
+                file.delete();
+            }
+        }
+
+        assertTrue(
+            new String(output.toByteArray(), StandardCharsets.UTF_8).contains("Unsupported server mode"),
+            "Application was started in an unsupported server mode!"
+        );
+        assertEquals(
+            200,
+            AppTest.__getCode("/movies"),
+            "Running application was affected!"
+        );
+    }
+
     @AfterAll
     public static void stopServer() {
         if (AppTest.cfgPath != null) {
@@ -583,8 +1477,13 @@ public final class AppTest {
 
     // запрашиваем список фильмов
     private static AppTest.ListWrapper<MovieModel> __getMovies() {
+        return AppTest.__getMovies("");
+    }
+
+    // запрашиваем список фильмов с заданными параметрами запроса
+    private static AppTest.ListWrapper<MovieModel> __getMovies(final String query) {
         // создаем запрос
-        final Request request = new Request.Builder().url(AppTest.API_URL_PREFIX + "/movies").build();
+        final Request request = new Request.Builder().url(AppTest.API_URL_PREFIX + "/movies" + query).build();
 
         String content; // данные ответа
 
@@ -875,6 +1774,93 @@ public final class AppTest {
         assertTrue(AppTest.__isOK(content), "Unsuccessful request sending result!");
     }
 
+    // запрашиваем заданный эндпойнт и возвращаем код ответа
+    private static int __getCode(final String path) {
+        // создаем запрос
+        final Request request = new Request.Builder().url(AppTest.API_URL_PREFIX + path).build();
+
+        // отправляем запрос и расшифровываем ответ
+        try {
+            final String content = (AppTest.client.newCall(request).execute()).body().string();
+            return (new ObjectMapper()).readValue(content, AppTest.Result.class).code;
+        } catch (IOException exc) {
+            fail("Failed to send a request to server!");
+            return 0;
+        }
+    }
+
+    // запрашиваем заданный эндпойнт и возвращаем ETag ответа
+    private static String __getETag(final String path) {
+        // создаем запрос
+        final Request request = new Request.Builder().url(AppTest.API_URL_PREFIX + path).build();
+
+        // отправляем запрос
+        try (Response response = AppTest.client.newCall(request).execute()) {
+            final String etag = response.header("ETag");
+            assertNotNull(etag, "No ETag was received from server!");
+            return etag;
+        } catch (IOException exc) {
+            fail("Failed to send a request to server!");
+            return null;
+        }
+    }
+
+    // запрашиваем заданный эндпойнт с If-None-Match и возвращаем HTTP-код ответа
+    private static int __getConditionalCode(final String path, final String etag) {
+        // создаем запрос
+        final Request request = new Request.Builder()
+            .url(AppTest.API_URL_PREFIX + path)
+            .header("If-None-Match", etag)
+            .build();
+
+        // отправляем запрос
+        try (Response response = AppTest.client.newCall(request).execute()) {
+            return response.code();
+        } catch (IOException exc) {
+            fail("Failed to send a request to server!");
+            return 0;
+        }
+    }
+
+    // запрашиваем данные методом GET и получаем тело ответа
+    private static String __get(final String path) {
+        // создаем запрос
+        final Request request = new Request.Builder().url(AppTest.API_URL_PREFIX + path).build();
+
+        // отправляем запрос
+        try {
+            return (AppTest.client.newCall(request).execute()).body().string();
+        } catch (IOException exc) {
+            fail("Failed to send a request to server!");
+            return null;
+        }
+    }
+
+    // отправляем данные методом POST и получаем тело ответа
+    private static String __post(final String path, final String json) {
+        // создаем запрос
+        final RequestBody body    = RequestBody.create(AppTest.JSON, json);
+        final Request     request = new Request.Builder().url(AppTest.API_URL_PREFIX + path).post(body).build();
+
+        // отправляем запрос
+        try {
+            return (AppTest.client.newCall(request).execute()).body().string();
+        } catch (IOException exc) {
+            fail("Failed to send a request to server!");
+            return null;
+        }
+    }
+
+    // отправляем данные методом POST и получаем код ответа
+    private static int __postCode(final String path, final String json) {
+        try {
+            return (new ObjectMapper()).readValue(AppTest.__post(path, json), AppTest.Result.class).code;
+        } catch (IOException exc) {
+            fail("Failed to decode the server response!");
+            return 0;
+        }
+    }
+
     // декодируем ответ с кодом 200 от сервера
     private static boolean __isOK(final String data) {
         try {